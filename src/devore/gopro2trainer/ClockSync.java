@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds how far the GoPro clock is off from the gps file, by lining up the speeds recorded by
+ * each.  The speeds are taken from the positions, sampled 10 times a second, and the
+ * best lag is found with an FFT cross correlation and refined to a fraction of a sample.
+ */
+class ClockSync {
+    private static final Logger logger = Logger.getLogger(ClockSync.class.getName());
+    private static final long STEP = 100;
+    /** the speed is the distance covered over this many samples on each side */
+    private static final int SPEED_SAMPLES = 5;
+    /** the largest offset that is looked for, in milliseconds */
+    private static final long MAX_OFFSET = 30000;
+
+    /**
+     * Returns the offset to add to the GoPro times to match the gps file, or 0 if the tracks
+     * don't overlap enough to tell.
+     */
+    static long findOffset(Track gopro, Track gps) {
+        if (gopro.size() < 2 || gps.size() < 2) {
+            logger.warning("Not enough gps data to find the video offset");
+            return 0;
+        }
+        long start = Math.max(gopro.startTime(), gps.startTime());
+        long end = Math.min(gopro.endTime(), gps.endTime());
+        int count = (int) ((end - start) / STEP) + 1;
+        int maxLag = (int) (MAX_OFFSET / STEP);
+        if (count < 2 * SPEED_SAMPLES + maxLag) {
+            logger.warning("The video and gps files don't overlap enough to find the video offset");
+            return 0;
+        }
+        double[] goproSpeed = getSpeeds(gopro, start, count);
+        double[] gpsSpeed = getSpeeds(gps, start, count);
+        // gopro(t) matches gps(t + offset), so the peak is at lag = offset
+        double lag = Fft.findPeak(Fft.crossCorrelate(gpsSpeed, goproSpeed, maxLag));
+        long offset = Math.round(lag * STEP);
+        logger.log(Level.INFO, "Video offset: {0} ms", offset);
+        return offset;
+    }
+
+    /**
+     * Returns the speeds every STEP milliseconds, less their average.  The speed is the straight
+     * line distance between the positions SPEED_SAMPLES before and after, so gps noise doesn't
+     * add up the way it would along the track.
+     */
+    private static double[] getSpeeds(Track track, long start, int count) {
+        double[] lat = track.resample(track.lat, start, STEP, count);
+        double[] lon = track.resample(track.lon, start, STEP, count);
+        double[] speed = new double[count];
+        double mean = 0;
+        for (int k = 0; k < count; k++) {
+            int from = Math.max(k - SPEED_SAMPLES, 0);
+            int to = Math.min(k + SPEED_SAMPLES, count - 1);
+            speed[k] = Track.getMiles(lat[from], lon[from], lat[to], lon[to]) / (to - from);
+            mean += speed[k];
+        }
+        mean /= count;
+        for (int k = 0; k < count; k++) {
+            speed[k] -= mean;
+        }
+        return speed;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Looks up elevations in SRTM .hgt files, such as N44W094.hgt.  Each file covers one degree
+ * and is a square grid of big endian 16 bit heights in meters, starting at the north west
+ * corner.  Both the 3 arc second (1201 x 1201) and 1 arc second (3601 x 3601) files work.
+ * <p>
+ * Files are memory mapped, and the most recently used ones are kept mapped.  Heights are
+ * interpolated between the four surrounding samples.
+ */
+class DemElevation {
+    private static final short VOID = -32768;
+    private static final int MAX_TILES = 16;
+
+    private final File directory;
+    private final Map<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(MAX_TILES, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+    private long lastKey = Long.MIN_VALUE;
+    private Tile lastTile;
+
+    private static class Tile {
+        final MappedByteBuffer data;
+        final int samples;
+
+        Tile(MappedByteBuffer data, int samples) {
+            this.data = data;
+            this.samples = samples;
+        }
+    }
+
+    DemElevation(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Replaces the elevations of the track.  Points that aren't covered by a file, or are in a
+     * void, are left alone.
+     *
+     * @return the number of points that were changed
+     */
+    int lookup(Track track) throws IOException {
+        int found = 0;
+        for (int i = 0; i < track.size(); i++) {
+            double elevation = getElevation(track.lat[i], track.lon[i]);
+            if (!Double.isNaN(elevation)) {
+                track.elevation[i] = elevation;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the elevation in meters, or NaN if it isn't known.
+     */
+    double getElevation(double lat, double lon) throws IOException {
+        int tileLat = (int) Math.floor(lat);
+        int tileLon = (int) Math.floor(lon);
+        Tile tile = getTile(tileLat, tileLon);
+        if (tile == null) {
+            return Double.NaN;
+        }
+        int last = tile.samples - 1;
+        double x = (lon - tileLon) * last;
+        double y = (tileLat + 1 - lat) * last;
+        int column = Math.min((int) x, last - 1);
+        int row = Math.min((int) y, last - 1);
+        double dx = x - column;
+        double dy = y - row;
+        double sum = 0;
+        double weight = 0;
+        for (int r = 0; r <= 1; r++) {
+            for (int c = 0; c <= 1; c++) {
+                short height = tile.data.getShort(((row + r) * tile.samples + column + c) * 2);
+                if (height != VOID) {
+                    double w = (r == 0 ? 1 - dy : dy) * (c == 0 ? 1 - dx : dx);
+                    sum += height * w;
+                    weight += w;
+                }
+            }
+        }
+        return weight > 0 ? sum / weight : Double.NaN;
+    }
+
+    /**
+     * Returns the tile covering the given degree, or null if there isn't a file for it.
+     */
+    private Tile getTile(int tileLat, int tileLon) throws IOException {
+        long key = ((long) tileLat << 32) | (tileLon & 0xffffffffL);
+        if (key == lastKey) {
+            return lastTile;
+        }
+        Tile tile = tiles.get(key);
+        if (tile == null && !tiles.containsKey(key)) {
+            tile = openTile(tileLat, tileLon);
+            tiles.put(key, tile);
+        }
+        lastKey = key;
+        lastTile = tile;
+        return tile;
+    }
+
+    private Tile openTile(int tileLat, int tileLon) throws IOException {
+        String name = String.format(Locale.US, "%s%02d%s%03d.hgt",
+                tileLat < 0 ? "S" : "N", Math.abs(tileLat),
+                tileLon < 0 ? "W" : "E", Math.abs(tileLon));
+        File file = new File(directory, name);
+        if (!file.isFile()) {
+            file = new File(directory, name.toLowerCase(Locale.US));
+            if (!file.isFile()) {
+                return null;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int samples = (int) Math.round(Math.sqrt(size / 2.0));
+            if (samples < 2 || (long) samples * samples * 2 != size) {
+                throw new IOException("Not a valid hgt file: " + file);
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            data.order(ByteOrder.BIG_ENDIAN);
+            return new Tile(data, samples);
+        }
+    }
+}
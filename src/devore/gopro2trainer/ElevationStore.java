@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A store of elevations from past rides, so a ride that only has GoPro data can get its
+ * elevations from earlier rides over the same roads.  Elevations are looked up by location
+ * only.
+ * <p>
+ * The store is a directory of tile files, each covering 0.01 degrees of latitude and longitude.
+ * A tile is a grid of 100 x 100 cells (about 11 meters), each holding the sum of the elevations
+ * and the number of rides that went through it.  A ride adds its average elevation in a cell
+ * once, so every ride counts the same no matter how slowly it went through.  The tiles are
+ * memory mapped, and only the ones a ride goes through are ever touched.
+ * <p>
+ * The rides that have been added are listed in rides.txt by their start time and number of
+ * points, so adding the same ride again is skipped instead of counting it twice.
+ */
+class ElevationStore {
+    private static final Logger logger = Logger.getLogger(ElevationStore.class.getName());
+    /** cells per degree */
+    private static final int CELLS = 10000;
+    /** cells along each side of a tile */
+    private static final int TILE_CELLS = 100;
+    /** a float sum and an int count */
+    private static final int CELL_BYTES = 8;
+    private static final int TILE_BYTES = TILE_CELLS * TILE_CELLS * CELL_BYTES;
+    private static final String RIDES = "rides.txt";
+
+    private final File directory;
+    /** tiles that have been mapped, or null if they don't exist */
+    private final Map<Long, MappedByteBuffer> tiles = new HashMap<>();
+
+    ElevationStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Adds the elevations of a ride to the store, unless it has been added before.  Points
+     * without an elevation are skipped.
+     */
+    void add(Track track) throws IOException {
+        if (track.isEmpty()) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File rides = new File(directory, RIDES);
+        String ride = track.startTime() + " " + track.size();
+        if (rides.isFile() && FileUtils.readLines(rides, StandardCharsets.UTF_8).contains(ride)) {
+            logger.log(Level.INFO, "The ride starting {0} is already in the elevation store", Utils.formatDateTime(track.startTime()));
+            return;
+        }
+        // average the ride in each cell first
+        Map<Long, double[]> cells = new HashMap<>();
+        for (int i = 0; i < track.size(); i++) {
+            double elevation = track.elevation[i];
+            if (Double.isNaN(elevation)) {
+                continue;
+            }
+            long key = key(cell(track.lat[i]), cell(track.lon[i]));
+            double[] sum = cells.computeIfAbsent(key, k -> new double[2]);
+            sum[0] += elevation;
+            sum[1]++;
+        }
+        for (Map.Entry<Long, double[]> entry : cells.entrySet()) {
+            int cellLat = (int) (entry.getKey() >> 32);
+            int cellLon = (int) (long) entry.getKey();
+            MappedByteBuffer tile = getTile(cellLat, cellLon, true);
+            int pos = offset(cellLat, cellLon);
+            double[] sum = entry.getValue();
+            tile.putFloat(pos, (float) (tile.getFloat(pos) + sum[0] / sum[1]));
+            tile.putInt(pos + 4, tile.getInt(pos + 4) + 1);
+        }
+        for (MappedByteBuffer tile : tiles.values()) {
+            if (tile != null && !tile.isReadOnly()) {
+                tile.force();
+            }
+        }
+        FileUtils.writeLines(rides, StandardCharsets.UTF_8.name(), Collections.singletonList(ride), true);
+        logger.log(Level.INFO, "Added {0} cells to the elevation store", cells.size());
+    }
+
+    /**
+     * Replaces the elevations of the track with the ones in the store.  If the cell a point is
+     * in is empty, the average of the cells around it is used.  Points with nothing nearby are
+     * left alone.
+     *
+     * @return the number of points that were changed
+     */
+    int lookup(Track track) throws IOException {
+        int found = 0;
+        for (int i = 0; i < track.size(); i++) {
+            int cellLat = cell(track.lat[i]);
+            int cellLon = cell(track.lon[i]);
+            double elevation = getElevation(cellLat, cellLon);
+            if (Double.isNaN(elevation)) {
+                double sum = 0;
+                int count = 0;
+                for (int dLat = -1; dLat <= 1; dLat++) {
+                    for (int dLon = -1; dLon <= 1; dLon++) {
+                        double e = getElevation(cellLat + dLat, cellLon + dLon);
+                        if (!Double.isNaN(e)) {
+                            sum += e;
+                            count++;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    elevation = sum / count;
+                }
+            }
+            if (!Double.isNaN(elevation)) {
+                track.elevation[i] = elevation;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the average elevation of the cell, or NaN if no ride has been through it.
+     */
+    private double getElevation(int cellLat, int cellLon) throws IOException {
+        MappedByteBuffer tile = getTile(cellLat, cellLon, false);
+        if (tile == null) {
+            return Double.NaN;
+        }
+        int pos = offset(cellLat, cellLon);
+        int count = tile.getInt(pos + 4);
+        return count == 0 ? Double.NaN : tile.getFloat(pos) / count;
+    }
+
+    private MappedByteBuffer getTile(int cellLat, int cellLon, boolean create) throws IOException {
+        int tileLat = Math.floorDiv(cellLat, TILE_CELLS);
+        int tileLon = Math.floorDiv(cellLon, TILE_CELLS);
+        Long key = key(tileLat, tileLon);
+        MappedByteBuffer tile = tiles.get(key);
+        if (tiles.containsKey(key) && (!create || tile != null && !tile.isReadOnly())) {
+            return tile;
+        }
+        File file = new File(directory, String.format("%d_%d.ele", tileLat, tileLon));
+        if (!create && !file.isFile()) {
+            tiles.put(key, null);
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, create ? "rw" : "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() != TILE_BYTES) {
+                if (!create) {
+                    throw new IOException("Invalid elevation tile " + file);
+                }
+                raf.setLength(TILE_BYTES);
+            }
+            tile = channel.map(create ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, TILE_BYTES);
+        }
+        tiles.put(key, tile);
+        return tile;
+    }
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees * CELLS);
+    }
+
+    private static long key(int lat, int lon) {
+        return ((long) lat << 32) | (lon & 0xffffffffL);
+    }
+
+    /**
+     * Returns the position of the cell within its tile.
+     */
+    private static int offset(int cellLat, int cellLon) {
+        int row = Math.floorMod(cellLat, TILE_CELLS);
+        int column = Math.floorMod(cellLon, TILE_CELLS);
+        return (row * TILE_CELLS + column) * CELL_BYTES;
+    }
+}
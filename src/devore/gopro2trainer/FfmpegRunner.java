@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Runs ffmpeg commands instead of writing them to a script.  The jobs given to run are run
+ * at the same time, up to the number of threads, and their progress is logged as they go.
+ * If any job fails, the rest are stopped.  The messages from each job are written to a log
+ * file named after it, which is kept if it fails.
+ */
+class FfmpegRunner {
+    private static final Logger logger = Logger.getLogger(FfmpegRunner.class.getName());
+    /** how often the progress is logged, in milliseconds */
+    private static final long REPORT_INTERVAL = 5000;
+    /** the number of lines of a failed job's log that are shown */
+    private static final int LOG_LINES = 10;
+
+    private final String ffmpeg;
+    private final int threads;
+    private final Set<Process> processes = new HashSet<>();
+
+    /**
+     * @param ffmpeg the path of the ffmpeg program
+     * @param threads the most jobs to run at once
+     */
+    FfmpegRunner(String ffmpeg, int threads) {
+        this.ffmpeg = ffmpeg;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * An ffmpeg command.
+     */
+    static class Job {
+        final String name;
+        final List<String> args;
+        /** the length of the output in seconds, used for the progress */
+        final double seconds;
+        volatile double secondsDone;
+        volatile long bytesDone;
+
+        /**
+         * @param name the name of the job.  It is also the name of its log file.
+         * @param commandLine the command as it is written in the script, starting with ffmpeg
+         * @param seconds the length of the output in seconds
+         */
+        Job(String name, String commandLine, double seconds) {
+            this.name = name;
+            this.args = split(commandLine.trim());
+            this.seconds = seconds;
+        }
+
+        File getLogFile() {
+            return new File(name + ".log");
+        }
+
+        /**
+         * Returns the file written by the job, which is the last argument.
+         */
+        File getOutput() {
+            return new File(args.get(args.size() - 1));
+        }
+    }
+
+    /**
+     * Splits a command line into its arguments.  Double quotes group words into an argument,
+     * and are removed.
+     */
+    static List<String> split(String commandLine) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean quoted = false;
+        boolean inArg = false;
+        for (int i = 0; i < commandLine.length(); i++) {
+            char c = commandLine.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inArg = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    /**
+     * Runs the jobs, and returns when they have all finished.
+     *
+     * @throws IOException if any of the jobs fail
+     */
+    void run(List<Job> jobs) throws IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+        ExecutorCompletionService<Job> completion = new ExecutorCompletionService<>(executor);
+        try {
+            for (Job job : jobs) {
+                completion.submit(() -> {
+                    runJob(job);
+                    return job;
+                });
+            }
+            long start = System.currentTimeMillis();
+            int finished = 0;
+            while (finished < jobs.size()) {
+                Future<Job> future = completion.poll(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    logProgress(jobs, start);
+                    continue;
+                }
+                Job job = future.get();
+                logger.log(Level.FINE, "Finished {0}", job.name);
+                finished++;
+            }
+            logProgress(jobs, start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running ffmpeg", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            synchronized (processes) {
+                processes.forEach(Process::destroy);
+            }
+        }
+    }
+
+    private void runJob(Job job) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ffmpeg);
+        command.add("-progress");
+        command.add("pipe:1");
+        command.add("-nostats");
+        for (String arg : job.args.subList(1, job.args.size())) {
+            if (arg.equals("/dev/null") && File.separatorChar == '\\') {
+                arg = "NUL";
+            }
+            command.add(arg);
+        }
+        logger.log(Level.FINE, "Running {0}", command);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(job.getLogFile());
+        Process process;
+        synchronized (processes) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            process = builder.start();
+            processes.add(process);
+        }
+        try {
+            process.getOutputStream().close();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    readProgress(job, line);
+                }
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(String.format("ffmpeg failed with exit code %d for %s.  See %s:%n%s",
+                        exitCode, job.name, job.getLogFile(), tail(job.getLogFile())));
+            }
+        } finally {
+            synchronized (processes) {
+                processes.remove(process);
+            }
+        }
+        job.secondsDone = job.seconds;
+        job.getLogFile().delete();
+    }
+
+    /**
+     * Reads a line of the -progress output, which are key=value pairs.
+     */
+    private static void readProgress(Job job, String line) {
+        int equals = line.indexOf('=');
+        if (equals < 0) {
+            return;
+        }
+        String key = line.substring(0, equals);
+        String value = line.substring(equals + 1).trim();
+        try {
+            switch (key) {
+                case "out_time_us":
+                case "out_time_ms":
+                    // both are in microseconds
+                    job.secondsDone = Math.min(Long.parseLong(value) / 1e6, job.seconds);
+                    break;
+                case "total_size":
+                    job.bytesDone = Long.parseLong(value);
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // ffmpeg writes N/A before it knows
+        }
+    }
+
+    private static void logProgress(List<Job> jobs, long start) {
+        double total = 0;
+        double done = 0;
+        long bytes = 0;
+        for (Job job : jobs) {
+            total += job.seconds;
+            done += job.secondsDone;
+            bytes += job.bytesDone;
+        }
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+        if (elapsed <= 0 || total <= 0) {
+            return;
+        }
+        double speed = done / elapsed;
+        String eta = speed > 0 ? Utils.formatElapsed((long) ((total - done) / speed * 1000)) : "unknown";
+        logger.log(Level.INFO, String.format("Progress: %s of %s (%.0f%%), %.1fx, %.1f MB/s, ETA %s",
+                Utils.formatElapsed((long) (done * 1000)), Utils.formatElapsed((long) (total * 1000)),
+                100 * done / total, speed, bytes / elapsed / 1e6, eta));
+    }
+
+    private static String tail(File file) {
+        try {
+            List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+            return String.join(System.lineSeparator(), lines.subList(Math.max(lines.size() - LOG_LINES, 0), lines.size()));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
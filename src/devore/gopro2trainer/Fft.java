@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+/**
+ * A radix 2 fast Fourier transform, and the cross correlation built on it.  This is used to
+ * line up signals in time, such as power and climbing rate, or the speeds from two gps units.
+ */
+class Fft {
+
+    /**
+     * Transforms the complex data in place.  The length must be a power of 2.  The inverse
+     * transform is scaled by 1/n, so a forward and inverse transform give back the input.
+     */
+    static void transform(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        if (Integer.bitCount(n) != 1 || im.length != n) {
+            throw new IllegalArgumentException("The length must be a power of 2: " + n);
+        }
+        // bit reversal
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double temp = re[i];
+                re[i] = re[j];
+                re[j] = temp;
+                temp = im[i];
+                im[i] = im[j];
+                im[j] = temp;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            int half = length >> 1;
+            for (int start = 0; start < n; start += length) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int k = 0; k < half; k++) {
+                    int a = start + k;
+                    int b = a + half;
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double nextRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * Returns the cross correlation of a and b, sum(a[t] * b[t - lag]), for lags from -maxLag
+     * to maxLag.  The value for a lag is at index maxLag + lag.  Both are zero padded, so the
+     * ends don't wrap around.
+     */
+    static double[] crossCorrelate(double[] a, double[] b, int maxLag) {
+        int n = Integer.highestOneBit(Math.max(a.length, b.length) + maxLag) << 1;
+        double[] aRe = new double[n];
+        double[] aIm = new double[n];
+        double[] bRe = new double[n];
+        double[] bIm = new double[n];
+        System.arraycopy(a, 0, aRe, 0, a.length);
+        System.arraycopy(b, 0, bRe, 0, b.length);
+        transform(aRe, aIm, false);
+        transform(bRe, bIm, false);
+        // a times the conjugate of b
+        for (int i = 0; i < n; i++) {
+            double re = aRe[i] * bRe[i] + aIm[i] * bIm[i];
+            double im = aIm[i] * bRe[i] - aRe[i] * bIm[i];
+            aRe[i] = re;
+            aIm[i] = im;
+        }
+        transform(aRe, aIm, true);
+        double[] result = new double[2 * maxLag + 1];
+        for (int lag = -maxLag; lag <= maxLag; lag++) {
+            result[maxLag + lag] = aRe[lag < 0 ? n + lag : lag];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the lag with the highest correlation, refined between samples by fitting a
+     * parabola through the peak and its neighbors.
+     *
+     * @param correlation the result of crossCorrelate
+     */
+    static double findPeak(double[] correlation) {
+        int maxLag = correlation.length / 2;
+        int peak = 0;
+        for (int i = 1; i < correlation.length; i++) {
+            if (correlation[i] > correlation[peak]) {
+                peak = i;
+            }
+        }
+        double offset = 0;
+        if (peak > 0 && peak < correlation.length - 1) {
+            double left = correlation[peak - 1];
+            double center = correlation[peak];
+            double right = correlation[peak + 1];
+            double denominator = left - 2 * center + right;
+            if (denominator != 0) {
+                offset = .5 * (left - right) / denominator;
+            }
+        }
+        return peak - maxLag + offset;
+    }
+}
@@ -18,123 +18,210 @@ package devore.gopro2trainer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import static java.nio.charset.StandardCharsets.US_ASCII;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteOrder;
 
 /**
  * This is a rather minimal class to retrieve GPS data from a GoPro GPMF file.
  * It does not attempt to be a generic GPMF parser.
+ * <p>
+ * The KLV entries are walked in place using absolute reads on the sample buffer, so nothing is
+ * allocated per entry.  Keys are compared as big endian packed ints.
+ * <p>
+ * Every GPS5 sample is kept.  GPSU only gives the time of the first sample in a payload, so the
+ * samples are spread evenly between it and the GPSU of the next payload.
  */
 public class GPMF {
-    private final ArrayList<Point> list = new ArrayList<>();
+    static final int DEVC = 0x44455643;
+    static final int STRM = 0x5354524d;
+    static final int GPSU = 0x47505355;
+    static final int GPS5 = 0x47505335;
+    static final int SCAL = 0x5343414c;
 
-    public List<Point> getPoints() throws IOException {
-        return list;
+    /** Payload length used when the next payload is missing or not contiguous */
+    private static final long DEFAULT_PAYLOAD_MILLIS = 1001;
+    private static final long MAX_PAYLOAD_MILLIS = 2000;
+
+    private final Track track = new Track(4096);
+    private final GPS gps = new GPS();
+    private int pendingStart;
+    private long pendingTime;
+    private long payloadMillis = DEFAULT_PAYLOAD_MILLIS;
+
+    /**
+     * Returns the samples read so far.
+     */
+    public Track getTrack() {
+        finishPayload(pendingTime + payloadMillis);
+        return track;
     }
-    
+
+    /**
+     * Returns the time of the first sample, or -1 if there isn't one yet.  Unlike getTrack, this
+     * doesn't finish off the last payload, so more samples can be read afterwards.
+     */
+    public long getFirstTimestamp() {
+        if (track.isEmpty()) {
+            return -1;
+        }
+        return pendingStart == 0 ? pendingTime : track.timestamp[0];
+    }
+
     public void readStream(ByteBuffer buffer) throws IOException {
-        getData(buffer, null);
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        readContainer(buf, buf.position(), buf.limit());
     }
 
-    private Data getData(ByteBuffer buffer, GPS gps) throws IOException {
-        while(true) {
-            Data data = getData(buffer);
-            if (data == null) {
-                break;
+    /**
+     * Reads the KLV entries between start and end.
+     */
+    private void readContainer(ByteBuffer buf, int start, int end) throws IOException {
+        int pos = start;
+        while (pos + 8 <= end) {
+            int key = buf.getInt(pos);
+            int type = buf.get(pos + 4);
+            int sampleSize = Byte.toUnsignedInt(buf.get(pos + 5));
+            int sampleCount = Short.toUnsignedInt(buf.getShort(pos + 6));
+            int size = sampleSize * sampleCount;
+            int dataStart = pos + 8;
+            if (dataStart + size > end) {
+                throw new IOException("GPMF entry runs past the end of its container");
             }
-            switch (data.key) {
-                case "DEVC":
-                    getData(data.buffer, gps);
-                case "STRM":
-                    gps = new GPS();
-                    getData(data.buffer, gps);
-                    if (gps.time > 0) {
-                        Point pt = new Point(gps.lat, gps.lon, gps.time, gps.altitude);
-                        list.add(pt);
+            switch (key) {
+                case DEVC:
+                    readContainer(buf, dataStart, dataStart + size);
+                    break;
+                case STRM:
+                    gps.clear();
+                    readContainer(buf, dataStart, dataStart + size);
+                    if (gps.time > 0 && gps.sampleCount > 0) {
+                        addSamples(buf);
                     }
                     break;
-                case "GPSU":
-                    String time = data.getString();
-                    gps.setTime(time);
+                case GPSU:
+                    gps.setTime(buf, dataStart, size);
                     break;
-                case "GPS5":
-                    gps.setCoords(data.readInt(), data.readInt(), data.readInt());
+                case SCAL:
+                    gps.setScale(buf, dataStart, type, sampleSize, sampleCount);
+                    break;
+                case GPS5:
+                    gps.samplePos = dataStart;
+                    gps.sampleSize = sampleSize;
+                    gps.sampleCount = sampleCount;
                     break;
             }
+            // entries are padded to 32 bits
+            pos = dataStart + ((size + 3) & ~3);
         }
-        return null;
     }
-    
-    private Data getData(ByteBuffer byteBuffer) throws IOException {
-        if (!byteBuffer.hasRemaining()) {
-            return null;
-        }
-        byte[] buffer = new byte[4];
-        byteBuffer.get(buffer);
-        String key = new String(buffer, US_ASCII);
-        byteBuffer.get(); //sampleType
-        int sampleSize = byteBuffer.get();
-        int sampleCount = Short.toUnsignedInt(byteBuffer.getShort());
-        int byteSize = sampleSize * sampleCount;
-        int mod = byteSize % 4;
-        if (mod > 0) {
-            byteSize += (4 - mod);
+
+    /**
+     * Decodes all of the samples in the current GPS5 entry.  Modifiers such as SCAL can be
+     * anywhere in the stream, so this is done after the stream has been read.
+     */
+    private void addSamples(ByteBuffer buf) {
+        finishPayload(gps.time);
+        pendingStart = track.size();
+        pendingTime = gps.time;
+        double latScale = gps.getScale(0);
+        double lonScale = gps.getScale(1);
+        double altScale = gps.getScale(2);
+        int pos = gps.samplePos;
+        for (int i = 0; i < gps.sampleCount; i++) {
+            // the timestamps are filled in by finishPayload
+            track.add(0, buf.getInt(pos) / latScale, buf.getInt(pos + 4) / lonScale, buf.getInt(pos + 8) / altScale);
+            pos += gps.sampleSize;
         }
-        byte[] samples = new byte[byteSize];
-        byteBuffer.get(samples);
-        return new Data(key, samples, sampleSize * sampleCount);
     }
-    
-    private static class Data {
-        String key;
-        ByteBuffer buffer;
-        int size;
-        
-        public Data(String key, byte[] data, int size) {
-            this.key = key;
-            this.buffer = ByteBuffer.wrap(data);
-            this.size = size;
-        }
 
-        public String getString() {
-            return new String(buffer.array(), 0, size, US_ASCII);
+    /**
+     * Spreads the samples of the last payload evenly between its timestamp and the next one.
+     */
+    private void finishPayload(long nextTime) {
+        int count = track.size() - pendingStart;
+        if (count <= 0) {
+            return;
         }
-        
-        public int readInt() throws IOException {
-            return buffer.getInt();
+        long duration = nextTime - pendingTime;
+        if (duration <= 0 || duration > MAX_PAYLOAD_MILLIS) {
+            duration = payloadMillis;
+        } else {
+            payloadMillis = duration;
         }
-        
-        @Override
-        public String toString() {
-            return key+": "+size;
+        for (int i = 0; i < count; i++) {
+            track.timestamp[pendingStart + i] = pendingTime + duration * i / count;
         }
+        pendingStart = track.size();
     }
-    
+
     private static class GPS {
-        private static final DateTimeFormatter FORMATTER = 
-            DateTimeFormatter.ofPattern ("yyMMddHHmmss.SSS").withZone(ZoneOffset.UTC);
+        private final TimeParser parser = new TimeParser();
         long time;
-        double lat;
-        double lon;
-        double altitude;
-        
-        public void setTime(String time) {
-            this.time = ZonedDateTime.parse(time, FORMATTER).toInstant().toEpochMilli();
+        final double[] scale = new double[5];
+        int scaleCount;
+        int samplePos;
+        int sampleSize;
+        int sampleCount;
+
+        public void clear() {
+            time = 0;
+            scaleCount = 0;
+            sampleCount = 0;
+        }
+
+        public void setTime(ByteBuffer buf, int start, int size) {
+            this.time = parser.parseGpsu(buf, start, size);
+        }
+
+        public void setScale(ByteBuffer buf, int start, int type, int sampleSize, int sampleCount) {
+            int count = sampleSize * sampleCount;
+            int step;
+            switch (type) {
+                case 'l':
+                case 'L':
+                    step = 4;
+                    break;
+                case 's':
+                case 'S':
+                    step = 2;
+                    break;
+                default:
+                    return;
+            }
+            count /= step;
+            scaleCount = Math.min(count, scale.length);
+            for (int i = 0; i < scaleCount; i++) {
+                int pos = start + i * step;
+                switch (type) {
+                    case 'l':
+                        scale[i] = buf.getInt(pos);
+                        break;
+                    case 'L':
+                        scale[i] = Integer.toUnsignedLong(buf.getInt(pos));
+                        break;
+                    case 's':
+                        scale[i] = buf.getShort(pos);
+                        break;
+                    default:
+                        scale[i] = Short.toUnsignedInt(buf.getShort(pos));
+                }
+            }
         }
 
-        public void setCoords(int lat, int lon, int altitude) throws IOException {
-            this.lat = lat / 1E7;
-            this.lon = lon / 1E7;
-            this.altitude = altitude / 1E3;
+        /**
+         * Returns the divisor for the given element.  A single SCAL value applies to all elements.
+         * The defaults match what GoPro cameras write when SCAL is missing.
+         */
+        public double getScale(int element) {
+            if (scaleCount == 0) {
+                return element < 2 ? 1E7 : 1E3;
+            }
+            double value = scale[scaleCount == 1 ? 0 : element];
+            return value == 0 ? 1 : value;
         }
-        
+
         @Override
         public String toString() {
-            return Utils.formatDateTime(time)+" "+lat+" "+lon+" "+altitude;
+            return Utils.formatDateTime(time)+" "+sampleCount+" samples";
         }
     }
 }
@@ -16,34 +16,37 @@
  */
 package devore.gopro2trainer;
 
-// code from flanagan.analysis from Dr Michael Thomas Flanagan at www.ee.ucl.ac.uk/~mflanaga 
-// used by permission for non-commerical use.
-import flanagan.analysis.CurveSmooth;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 public final class GPXHelper {
+    /** the farthest auto -advanceElevation will look, in milliseconds */
+    private static final long MAX_ELEVATION_LAG = 60000;
     private static final double MAX_STOP_DISTANCE  = 4 / 1609.344;  // 3 meters
     
     private static final Logger logger = Logger.getLogger(GPXHelper.class.getName());
-    private List<Point> pointList = new ArrayList<>();
-    private final List<Range> ranges = new ArrayList<>();
+    private Track track;
+    private final RangeSet ranges = new RangeSet();
     private final String baseName;
     private final List<String> sourceFiles = new ArrayList<>();
     private final HashMap<String,Long> startTimes = new HashMap<>();
@@ -77,26 +80,31 @@ public final class GPXHelper {
         if (startSpeed < 0) {
             startSpeed = 6 / 1.609;
         }
-        TreeMap<Long,List<Point>> data = new TreeMap<>();
+        TreeMap<Long,Track> data = new TreeMap<>();
+        int total = 0;
         for (File f: files) {
-            Point lastPoint = null;
             logger.log(Level.INFO, "Load gps files from: {0}", f.toString());
             if (!f.getName().toLowerCase(Locale.US).endsWith(".mp4")) {
                 sourceFiles.add(f.getName());
             }
-            List<Point> filePointList = GpsLoader.load(f);
-            for (Point pt : filePointList) {
-                if (lastPoint != null && lastPoint.timestamp >= pt.timestamp) {
-                    throw new RuntimeException("Points out of order at "+pt+" "+lastPoint);
+            Track fileTrack = GpsLoader.loadTrack(f);
+            if (fileTrack.isEmpty()) {
+                throw new RuntimeException("No gps points found in "+f);
+            }
+            for (int i = 1; i < fileTrack.size(); i++) {
+                if (fileTrack.timestamp[i-1] >= fileTrack.timestamp[i]) {
+                    throw new RuntimeException("Points out of order at "+fileTrack.toString(i)+" "+fileTrack.toString(i-1));
                 }
-                lastPoint = pt;
             }
-            long firstTimestamp = filePointList.get(0).timestamp;
+            long firstTimestamp = fileTrack.startTime();
             startTimes.put(FilenameUtils.removeExtension(f.getName()).toLowerCase(Locale.US), firstTimestamp);
-            data.put(firstTimestamp, filePointList);
+            data.put(firstTimestamp, fileTrack);
+            total += fileTrack.size();
         }
-        data.values().forEach((filePoints) -> {
-            pointList.addAll(filePoints);
+        // the file tracks can be shared with other loaders, so they are copied rather than modified
+        track = new Track(total);
+        data.values().forEach((fileTrack) -> {
+            track.addAll(fileTrack);
         });
         logger.log(Level.INFO, "Load      {0}", debug());
     }
@@ -116,35 +124,35 @@ public final class GPXHelper {
         return sourceFiles;
     }
     
-    List<Range> getCuts() {
+    RangeSet getCuts() {
         return ranges;
     }
     
     public long startTime() {
-        return pointList.get(0).timestamp;
+        return track.startTime();
     }
     
     public long endTime() {
-        return pointList.get(pointList.size() - 1).timestamp;
+        return track.endTime();
     }
     
-    public List<Point> getPoints() {
-        return pointList;
+    public Track getTrack() {
+        return track;
     }
 
     public void fixMissingUpdates() {
         // My Garmin sometimes has large distance, repeated twice.  This scans looking for a section
         // that remained the same as the last log entry, then replaces it with halfway between the 2 points.
         if (cmd.hasOption("fixMissing")) {
-            for(int i=pointList.size()-2; i >=1; i--){
-                Point pt = pointList.get(i);
-                Point ptPrev = pointList.get(i-1);
-                Point ptNext = pointList.get(i+1);
-                if (pt.lat == ptPrev.lat && pt.lon == ptPrev.lon) {
-                    pt.lat = (pt.lat + ptNext.lat) / 2;
-                    pt.lon = (pt.lon + ptNext.lon) / 2;
+            double[] lat = track.lat;
+            double[] lon = track.lon;
+            for(int i=track.size()-2; i >=1; i--){
+                if (lat[i] == lat[i-1] && lon[i] == lon[i-1]) {
+                    lat[i] = (lat[i] + lat[i+1]) / 2;
+                    lon[i] = (lon[i] + lon[i+1]) / 2;
                 }
             }
+            track.positionsChanged(0);
         }
     }
     
@@ -158,113 +166,101 @@ public final class GPXHelper {
         logger.info("remove stops at beginning and ending");
         ranges.clear();
         // trim beginning
-        for(int i=0; i < pointList.size()-1; i++){
-            Point pt = pointList.get(i);
-            double mph = pointList.get(i+1).getMPH(pt);
-            if (mph < startSpeed) {
-                pointList.remove(i);
-                i--;
-            } else {
-                break;
-            }
+        int start = 0;
+        while (start < track.size()-1 && track.getMPH(start+1, start) < startSpeed) {
+            start++;
         }
         // trim ending
-        for (int i=pointList.size()-1; i >0; i--) {
-            Point pt = pointList.get(i-1);
-            Point pt2 = pointList.get(i);
-            double mph = pt2.getMPH(pt);
-            if (mph < stopSpeed) {
-                pointList.remove(i);
-            } else {
-                break;
-            }
+        int end = track.size();
+        while (end-1 > start && track.getMPH(end-1, end-2) < stopSpeed) {
+            end--;
         }
+        track.keepRange(start, end);
         logger.log(Level.INFO, "trimmed:  {0}", debug());
     }
     
+    /**
+     * Removes the points where the bike was stopped, and records the time ranges to cut from
+     * the video.  If the ride backtracked to get to the stop (such as turning around to go into
+     * a store), the points back to where it left the route are removed too.
+     * <p>
+     * This is done in a single pass.  The points that are kept are compacted to the front of the
+     * track as it goes, so the points before write are the kept ones, and the points from read
+     * on haven't been looked at yet.
+     */
     public void markSpots() {
         Range lastRange = null;
+        long[] timestamp = track.timestamp;
+        int count = track.size();
+        int write = 0;
+        int read = 0;
         // Look for stops in the middle
-        for(int i=0; i < pointList.size()-1; i++){
-            Point pt1 = pointList.get(i);
-            Point pt2 = pointList.get(i+1);
-            double mph = pt2.getMPH(pt1);
+        while (read < count-1) {
+            double mph = track.getMPH(read+1, read);
             if (mph < stopSpeed || mph < startSpeed && lastRange != null) {
                 if (lastRange != null) {
-                    lastRange.end = pt2.timestamp;
+                    lastRange.end = timestamp[read+1];
                 } else {
-                    lastRange = new Range(pt1.timestamp, pt2.timestamp);
+                    lastRange = new Range(timestamp[read], timestamp[read+1]);
                 }
-                pointList.remove(i);
-                i--;
-            } else {
-                if (lastRange != null) {
-                    long searchTime = pt1.timestamp - 120000;
-                    int startIdx = findIndex(searchTime);
-                    int closestIdx = -1;
-                    double closestDistance = Double.MAX_VALUE;
-                    for (int j=startIdx; j <= i; j++) {
-                        double dist = pointList.get(j).getMiles(pt1);
-                        if (dist < closestDistance) {
-                            closestDistance = dist;
-                            closestIdx = j;
-                        } else if (j < i-1 && closestDistance < MAX_STOP_DISTANCE) { 
-                            // distance is starting to go up, and we are close
-                            break;
-                        }
+                // drop the point
+                read++;
+                continue;
+            }
+            boolean keep = true;
+            if (lastRange != null) {
+                // the kept points are 0 to write-1, followed by the current point at read
+                long searchTime = timestamp[read] - 120000;
+                int startIdx = track.findIndex(searchTime, write);
+                int closestIdx = -1;
+                double closestDistance = Double.MAX_VALUE;
+                for (int j=startIdx; j <= write; j++) {
+                    double dist = track.getMiles(read, j < write ? j : read);
+                    if (dist < closestDistance) {
+                        closestDistance = dist;
+                        closestIdx = j;
+                    } else if (j < write-1 && closestDistance < MAX_STOP_DISTANCE) { 
+                        // distance is starting to go up, and we are close
+                        break;
                     }
-                    if (closestIdx < i) {
+                }
+                if (closestIdx >= 0 && closestIdx < write) {
+                    if (closestIdx > 0) {
                         closestIdx--;
-                        logger.info("Removing backtrack");
-                        Point bt1 = pointList.get(closestIdx);
-                        Point bt2 = pointList.get(i);
-                        logger.info(String.format(" %s to %s, dur: %s", 
-                                Utils.formatDateTime(bt1.timestamp), 
-                                Utils.formatDateTime(bt2.timestamp), 
-                                Utils.formatElapsed(bt2.timestamp-bt1.timestamp)));
-                        lastRange.start = pointList.get(closestIdx).timestamp;
-                        for (int j = i; j >= closestIdx; j--) {
-                            pointList.remove(j);
-                            i--;
-                        }
-                    }
-                    if ((lastRange.end - lastRange.start) > 2000) {
-                        ranges.add(lastRange);
                     }
+                    logger.info("Removing backtrack");
+                    long bt1 = timestamp[closestIdx];
+                    long bt2 = timestamp[read];
+                    logger.info(String.format(" %s to %s, dur: %s", 
+                            Utils.formatDateTime(bt1), 
+                            Utils.formatDateTime(bt2), 
+                            Utils.formatElapsed(bt2-bt1)));
+                    lastRange.start = bt1;
+                    // drop the kept points from closestIdx on, and the current point
+                    write = closestIdx;
+                    keep = false;
+                }
+                if ((lastRange.end - lastRange.start) > 2000) {
+                    ranges.add(lastRange);
                 }
                 lastRange = null;
             }
+            if (keep) {
+                track.copy(read, write++);
+            }
+            read++;
         }
         if ((lastRange != null)) {
             ranges.add(lastRange);
-            pointList.remove(pointList.size()-1);
-        }
-        // check for overlaps.
-        ArrayList<Range> newList = new ArrayList<>();
-        Range lastR = null;
-        for (Range r: ranges) {
-            if (lastR == null) {
-                lastR = r;
-            } else {
-                if (r.start >= lastR.start) {
-                    newList.add(lastR);
-                }
-                lastR = r;
-            }
+            // drop the last point
+            read = count;
         }
-        newList.add(lastR);
-        ranges.clear();
-        ranges.addAll(newList);
-
-        ranges.forEach((range) -> {
-            logger.fine(range.toString());
-        });
-
-        long offset = 0;
+        while (read < count) {
+            track.copy(read++, write++);
+        }
+        track.truncate(write);
         logger.info("Stop ranges found:");
         for (Range range : ranges) {
-            offset += range.getDuration();
-            range.offset = offset;
             logger.info(range.toString());
         }
     }
@@ -274,57 +270,80 @@ public final class GPXHelper {
      */
     public void removeStops() {
         logger.info("Remove stops");
-        for(int i=0; i < pointList.size();i++){
-            Point pt = pointList.get(i);
-            Range find = new Range(pt.timestamp, pt.timestamp);
-            int pos = Collections.binarySearch(ranges, find, null);
-            if (pos <  0) {
-                pos = -pos - 2;
-            }
-            if (pos >= 0) {
-                Range found = ranges.get(pos);
-                pt.timestamp -= found.offset;
-                if (i > 0 && pt.timestamp <= pointList.get(i-1).timestamp) {
-                    throw new RuntimeException("Points out of order at "+i+" "+pt+" "+pointList.get(i-1));
-                }
+        long[] timestamp = track.timestamp;
+        ranges.removeFrom(timestamp, track.size());
+        for(int i=1; i < track.size();i++){
+            if (timestamp[i] <= timestamp[i-1]) {
+                throw new RuntimeException("Points out of order at "+i+" "+track.toString(i)+" "+track.toString(i-1));
             }
         }
         logger.info("nostops:  "+debug());
     }
     
     public void validate() {
-        for(int i=0; i < pointList.size()-1; i++){
-            Point pt1 = pointList.get(i);
-            Point pt2 = pointList.get(i+1);
-            double mph = pt2.getMPH(pt1);
+        for(int i=0; i < track.size()-1; i++){
+            double mph = track.getSpeed(i+1);
             if (mph < 1.5) {
-                logger.log(Level.WARNING, String.format("warning:  %.1f at %s", mph, pt2.toString()));
+                logger.log(Level.WARNING, String.format("warning:  %.1f at %s", mph, track.toString(i+1)));
             }
         }
     }
     
     /**
      * Smooths out the elevation numbers, as the elevation is rather jaggy.
+     * <p>
+     * By default this smooths over a window of points.  With -smoothDistance the elevations are
+     * first resampled every given number of meters, so the window covers the same stretch of
+     * road no matter how fast the bike was going.
      */
     public void smoothEleveation() {
         logger.info("smoothElevation");
-        double[] time =  new double[pointList.size()];
-        double[] elevation = new double[pointList.size()];
-        for (int i=pointList.size()-1; i >=0; i--){
-            Point pt = pointList.get(i);
-            elevation[i] = pt.elevation;
-            time[i] = pt.timestamp;
-        }
-        CurveSmooth smooth = new CurveSmooth(time, elevation);
-        double[] filtOutput = smooth.savitzkyGolay(47);
-        for (int i=pointList.size()-1; i >=0; i--){
-            Point pt = pointList.get(i);
-            pt.elevation = filtOutput[i];
+        int window = Integer.parseInt(cmd.getOptionValue("smoothWindow", "47"));
+        int order = Integer.parseInt(cmd.getOptionValue("smoothOrder", "4"));
+        SavitzkyGolay filter = new SavitzkyGolay(window, order);
+        String spacingStr = cmd.getOptionValue("smoothDistance");
+        if (spacingStr == null) {
+            filter.smooth(track.elevation, track.size());
+        } else {
+            smoothByDistance(filter, Double.parseDouble(spacingStr));
+        }
+    }
+
+    private void smoothByDistance(SavitzkyGolay filter, double spacing) {
+        int size = track.size();
+        double[] meters = new double[size];
+        for (int i = 0; i < size; i++) {
+            meters[i] = track.getDistance(0, i) / Track.METERS_TO_MILES;
+        }
+        double[] elevation = track.elevation;
+        int count = size == 0 ? 0 : (int) (meters[size - 1] / spacing) + 1;
+        if (count < 2) {
+            return;
+        }
+        // resample at even distances.  Both are in order, so one pass does it.
+        double[] samples = new double[count];
+        int j = 0;
+        for (int k = 0; k < count; k++) {
+            double position = k * spacing;
+            while (j < size - 2 && meters[j+1] <= position) {
+                j++;
+            }
+            double span = meters[j+1] - meters[j];
+            samples[k] = span == 0 ? elevation[j+1]
+                    : elevation[j] + (elevation[j+1] - elevation[j]) * (position - meters[j]) / span;
+        }
+        filter.smooth(samples, count);
+        for (int i = 0; i < size; i++) {
+            double position = meters[i] / spacing;
+            int k = Math.min((int) position, count - 2);
+            elevation[i] = samples[k] + (samples[k+1] - samples[k]) * (position - k);
         }
     }
     
     public void populate(Document doc, Element trkseg) {
-        pointList.forEach((pt) -> trkseg.appendChild(pt.toElement(doc)));
+        for (int i = 0; i < track.size(); i++) {
+            trkseg.appendChild(track.toElement(doc, i));
+        }
     }
     
     void trimToVideo(long startTime, long endTime) {
@@ -333,13 +352,13 @@ public final class GPXHelper {
         // end up to a second after the video ends
         endTime += 1000;
         //logger.log(Level.INFO, "trim to:          {0} {1}", new Object[]{Utils.formatDateTime(startTime), Utils.formatDateTime(endTime)});
-//        logger.log(Level.INFO, "before trim: {0} {1} {2}", new Object[]{pointList.size(), Utils.formatDateTime(startTime()), Utils.formatDateTime(endTime())});
-        for(int i=pointList.size()-1; i >=0; i--){
-            Point pt = pointList.get(i);
-            if (pt.timestamp >= endTime|| pt.timestamp <= startTime -1 ) {
-                pointList.remove(i);
-            }
+//        logger.log(Level.INFO, "before trim: {0} {1} {2}", new Object[]{track.size(), Utils.formatDateTime(startTime()), Utils.formatDateTime(endTime())});
+        boolean[] keep = new boolean[track.size()];
+        for(int i=0; i < track.size(); i++){
+            long timestamp = track.timestamp[i];
+            keep[i] = timestamp < endTime && timestamp > startTime - 1;
         }
+        track.compact(keep);
         logger.log(Level.INFO, "cut:      "+debug());
     }
 
@@ -350,28 +369,20 @@ public final class GPXHelper {
     void changePolling(long millis) {
         logger.info("Change polling");
         long maxDelta = millis / 4;
-        List<Point> newList = new ArrayList<>();
+        Track newTrack = new Track();
         long lastTimestamp = 0;
-        for (Point pt : pointList) {
-            if (pt.timestamp >= lastTimestamp + millis) {
-                newList.add(pt);
+        for (int i = 0; i < track.size(); i++) {
+            long timestamp = track.timestamp[i];
+            if (timestamp >= lastTimestamp + millis) {
+                newTrack.add(track, i);
                 lastTimestamp += millis;
-                if (Math.abs(lastTimestamp - pt.timestamp) > maxDelta) {
-                    lastTimestamp = pt.timestamp;
+                if (Math.abs(lastTimestamp - timestamp) > maxDelta) {
+                    lastTimestamp = timestamp;
                 }
             }
         }
-        pointList = newList;
-        logger.log(Level.INFO, "new point count: {0}", pointList.size());
-    }
-
-    private int findIndex(long searchTime) {
-        Point compare = new Point(0.0,0.0, searchTime, 0);
-        int pos = Collections.binarySearch(pointList, compare);
-        if (pos < 0) {
-            pos = -pos + 1;
-        }
-        return pos;
+        track = newTrack;
+        logger.log(Level.INFO, "new point count: {0}", track.size());
     }
 
     /**
@@ -386,37 +397,99 @@ public final class GPXHelper {
             File elevationDir = new File(elevation);
             List<File> elevationList = Collections.singletonList(elevationDir);
             GPXHelper elevationHelper = new GPXHelper(elevationList, null, cmd);
-            List<Point> points = elevationHelper.getPoints();
+            Track ref = elevationHelper.getTrack();
             long time = System.currentTimeMillis();
-            // not very efficient, but computers are fast.  
-            pointList.parallelStream().forEach((pt) -> {
+            // Only reference points within 20 seconds can match, so sort the reference by time
+            // and just search that window.  The files are each in order, but can overlap.
+            int[] order = IntStream.range(0, ref.size()).boxed()
+                    .sorted((a, b) -> Long.compare(ref.timestamp[a], ref.timestamp[b]))
+                    .mapToInt(Integer::intValue).toArray();
+            long[] times = new long[order.length];
+            for (int j = 0; j < order.length; j++) {
+                times[j] = ref.timestamp[order[j]];
+            }
+            IntStream.range(0, track.size()).parallel().forEach((i) -> {
                 double closestSq = Double.MAX_VALUE;
-                Point closestPt = null;
-                for (Point testPt : points) {
-                    double test = Point2D.distanceSq(pt.lat, pt.lon, testPt.lat, testPt.lon);
-                    if (test < closestSq && Math.abs(testPt.timestamp - pt.timestamp) < 20000) {
+                int closest = -1;
+                int end = lowerBound(times, track.timestamp[i] + 20000);
+                for (int k = lowerBound(times, track.timestamp[i] - 19999); k < end; k++) {
+                    int j = order[k];
+                    double test = Point2D.distanceSq(track.lat[i], track.lon[i], ref.lat[j], ref.lon[j]);
+                    // ties go to the earlier point in the file
+                    if (test < closestSq || test == closestSq && j < closest) {
                         closestSq = test;
-                        closestPt = testPt;
+                        closest = j;
                     }
                 }
-                pt.elevation = closestPt.elevation;
-                pt.speed = closestPt.speed;
-                pt.power = closestPt.power;
+                if (closest >= 0) {
+                    track.elevation[i] = ref.elevation[closest];
+                    track.speed[i] = ref.speed[closest];
+                    track.power[i] = ref.power[closest];
+                }
             });
             logger.log(Level.INFO, "Fixed elevations. Took {0}", System.currentTimeMillis() - time);
         }
     }
     
-    public double getTotalMiles() {
-        double miles = 0;
-        Point last = null;
-        for (Point pt : pointList) {
-            if (last != null) {
-                miles += pt.getMiles(last);
+    /**
+     * Adds gps files to the elevation store, and if there isn't an elevation file for this ride
+     * uses the store for the elevations.
+     */
+    void useElevationStore() throws IOException {
+        String storeDir = cmd.getOptionValue("elevationStore");
+        if (storeDir == null) {
+            return;
+        }
+        ElevationStore store = new ElevationStore(new File(storeDir));
+        String add = cmd.getOptionValue("addToElevationStore");
+        if (add != null) {
+            File addFile = new File(add);
+            Collection<File> files = addFile.isDirectory()
+                    ? FileUtils.listFiles(addFile, new SuffixFileFilter(new String[] {".gpx", ".tcx"}, IOCase.INSENSITIVE), null)
+                    : Collections.singletonList(addFile);
+            for (File f : files) {
+                logger.log(Level.INFO, "Adding {0} to the elevation store", f);
+                store.add(GpsLoader.loadTrack(f));
+            }
+        }
+        if (!cmd.hasOption("elevation")) {
+            int found = store.lookup(track);
+            logger.log(Level.INFO, "Found {0} of {1} elevations in the elevation store", new Object[]{found, track.size()});
+        }
+    }
+
+    /**
+     * Replaces the elevations with ones from SRTM elevation files, if a directory of them was given.
+     */
+    void useDem() throws IOException {
+        String demDir = cmd.getOptionValue("dem");
+        if (demDir != null) {
+            long time = System.currentTimeMillis();
+            int found = new DemElevation(new File(demDir)).lookup(track);
+            logger.log(Level.INFO, "Found {0} of {1} elevations in the dem files. Took {2}", 
+                    new Object[]{found, track.size(), System.currentTimeMillis() - time});
+        }
+    }
+
+    /**
+     * Returns the index of the first time that is at least time.
+     */
+    private static int lowerBound(long[] times, long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
-            last = pt;
         }
-        return miles;
+        return low;
+    }
+
+    public double getTotalMiles() {
+        return track.getTotalMiles();
     }
 
     /**
@@ -437,20 +510,15 @@ public final class GPXHelper {
             logger.info(String.format("Setting slope: %.1f%%", slope*100));
         }
         if (cmd.hasOption("fixLoopElevation")) {
-            double elevationError = pointList.get(0).elevation - pointList.get(pointList.size()-1).elevation;
+            double elevationError = track.elevation[0] - track.elevation[track.size()-1];
             logger.info(String.format("Adding %.1f meters to fix ending elevation", elevationError));
-            slope += elevationError * Point.METERS_TO_MILES / getTotalMiles();
+            slope += elevationError * Track.METERS_TO_MILES / getTotalMiles();
         }
         if (slope != 0) {
             double totalSlope = 0;
-            Point last = pointList.get(0);
-            for (int i=1; i < pointList.size(); i++) {
-                Point pt = pointList.get(i);
-                double miles = pt.getMiles(last);
-                
-                totalSlope += (slope * miles /  Point.METERS_TO_MILES);
-                pt.elevation += totalSlope;
-                last = pt;
+            for (int i=1; i < track.size(); i++) {
+                totalSlope = slope * track.getDistance(0, i) /  Track.METERS_TO_MILES;
+                track.elevation[i] += totalSlope;
             }
             logger.info(String.format("Total slope: %.1f%%, total change %.0f meters", slope*100, totalSlope));
         }
@@ -461,26 +529,77 @@ public final class GPXHelper {
      */
     void advanceElevation() {
         String advanceStr = cmd.getOptionValue("advanceElevation");
+        if ("auto".equalsIgnoreCase(advanceStr)) {
+            long time = System.currentTimeMillis();
+            Long lag = findElevationLag();
+            logger.log(Level.INFO, "Found elevation lag. Took {0}", System.currentTimeMillis() - time);
+            advanceStr = lag == null ? null : lag.toString();
+        }
         if (advanceStr != null) {
             long advance = Long.parseLong(advanceStr);
             logger.log(Level.INFO, "Advance elevation by {0} ms", advance);
-            TreeMap<Long,Double> lookup = new TreeMap<>();
-            for (Point pt : pointList) {
-                lookup.put(pt.timestamp + advance, pt.elevation);
-            }
-            for (Point pt : pointList) {
-                Map.Entry<Long,Double> lowest = lookup.floorEntry(pt.timestamp);
-                Map.Entry<Long,Double> highest = lookup.ceilingEntry(pt.timestamp);
-                if (lowest == null) {
-                    pt.elevation = highest.getValue();
-                } else if (highest == null) {
-                    pt.elevation = lowest.getValue();
-                } else {
-                    pt.elevation = Utils.interpolate(lowest.getKey(), lowest.getValue(), 
-                            highest.getKey(), highest.getValue(),
-                            pt.timestamp);
-                }
+            track.shift(track.elevation, advance);
+        }
+    }
+
+    /**
+     * Finds how far the elevation data needs to be moved to line up with the power data.
+     * The power that went into climbing (the measured power minus what it would take on the
+     * flat) should follow the rate of climb, so this finds the lag with the best cross
+     * correlation between the two, sampled once a second.
+     *
+     * @return the lag in milliseconds, or null if there isn't any power data
+     */
+    Long findElevationLag() {
+        int count = (int) ((endTime() - startTime()) / 1000) + 1;
+        if (track.size() < 3 || count < 3) {
+            return null;
+        }
+        double[] power = new double[track.size()];
+        boolean hasPower = false;
+        for (int i = 0; i < track.size(); i++) {
+            power[i] = track.power[i];
+            if (Double.isNaN(power[i])) {
+                power[i] = 0;
             }
+            hasPower |= power[i] > 0;
+        }
+        if (!hasPower) {
+            logger.warning("Can't find the elevation lag without power data");
+            return null;
+        }
+        power = track.resample(power, startTime(), 1000, count);
+        double[] elevation = track.resample(track.elevation, startTime(), 1000, count);
+        double[] speed = new double[track.size()];
+        for (int i = 1; i < track.size(); i++) {
+            speed[i] = track.getSpeed(i) / Track.MS_TO_MPH;
+        }
+        speed[0] = speed[1];
+        speed = track.resample(speed, startTime(), 1000, count);
+        double[] climbing = new double[count];
+        double[] climbRate = new double[count];
+        for (int k = 1; k < count - 1; k++) {
+            climbing[k] = power[k] - Experimental.getFlatPower(speed[k], speed[k] - speed[k-1], 1, elevation[k]);
+            // a centered difference, so the rate isn't half a second behind
+            climbRate[k] = (elevation[k+1] - elevation[k-1]) / 2;
+        }
+        removeMean(climbing);
+        removeMean(climbRate);
+        int maxLag = (int) Math.min(MAX_ELEVATION_LAG / 1000, count - 1);
+        double lag = Fft.findPeak(Fft.crossCorrelate(climbing, climbRate, maxLag));
+        long millis = Math.round(lag * 1000);
+        logger.log(Level.INFO, "Elevation lag: {0} ms", millis);
+        return millis;
+    }
+
+    private static void removeMean(double[] data) {
+        double mean = 0;
+        for (double d : data) {
+            mean += d;
+        }
+        mean /= data.length;
+        for (int i = 0; i < data.length; i++) {
+            data[i] -= mean;
         }
     }
 }
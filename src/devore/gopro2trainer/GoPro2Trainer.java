@@ -23,6 +23,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
@@ -58,6 +60,7 @@ public class GoPro2Trainer {
     private static File directory;
     /* Used to correct the video timing */
     private static long offset;
+    private static boolean autoOffset;
     private static long trimStart;
     private static long trimEnd;
     
@@ -71,7 +74,8 @@ public class GoPro2Trainer {
         gpxHelper.fixMissingUpdates();
         gpxHelper.changePolling(1000);
         gpxHelper.fixElevations();
-//        Experimental.checkSync(cmd, gpxHelper.getPoints());
+        gpxHelper.useElevationStore();
+        gpxHelper.useDem();
 
         gpxHelper.advanceElevation();
         gpxHelper.removeBeginEnd();
@@ -84,7 +88,7 @@ public class GoPro2Trainer {
         gpxHelper.changeSlope();
         
         writeXML(gpxHelper.getBaseName()+".gpx");
-//        Experimental.makeCSV(gpxHelper.getPoints());
+//        Experimental.makeCSV(gpxHelper.getTrack());
     }
     
     static {
@@ -94,16 +98,55 @@ public class GoPro2Trainer {
     
     public GoPro2Trainer(File directory) throws IOException, SAXException, ParserConfigurationException {
         vh = new VideoHelper(directory, cmd);
+        List<File> gpsVideos = new ArrayList<>();
+        for (File f : sourceFiles) {
+            if (f.getName().toLowerCase(Locale.US).endsWith(".mp4")) {
+                gpsVideos.add(f);
+            }
+        }
+        Collection<File> videoFiles = vh.findVideoFiles();
+        GoProMP4.loadAll(videoFiles, autoOffset ? videoFiles : gpsVideos);
         gpxHelper = new GPXHelper(sourceFiles, baseOutputName, cmd);
+        if (autoOffset) {
+            offset = findOffset(videoFiles, !gpsVideos.isEmpty());
+        }
         vh.setOutputFile(baseOutputName);
         vh.load(offset, gpxHelper);
     }
     
+    /**
+     * Finds the offset by lining up the gps data in the videos with the gps files.
+     */
+    private long findOffset(Collection<File> videoFiles, boolean gpsFromVideo) throws IOException {
+        if (gpsFromVideo) {
+            logger.info("The gps data is from the videos, so there is no offset");
+            return 0;
+        }
+        TreeMap<Long,Track> tracks = new TreeMap<>();
+        for (File file : videoFiles) {
+            GoProMP4 mp4 = GoProMP4.get(file);
+            tracks.put(mp4.getTimestamp(), mp4.getTrack());
+        }
+        Track gopro = new Track();
+        tracks.values().forEach((track) -> {
+            gopro.addAll(track);
+        });
+        return ClockSync.findOffset(gopro, gpxHelper.getTrack());
+    }
+
     public static void main(String[] args) throws Exception {
         Options options = new Options();
         options.addOption("o", true, "Output file.  The default is Output");
         options.addOption("reencode", "Reencode the output. Otherwise, the stream is copied");
-        options.addOption("offset", true, "Sets the offset of the video in milliseconds");
+        options.addOption("remux", "Write the output mp4 directly instead of creating a script to copy the stream with ffmpeg");
+        options.addOption("chunkSeconds", true, "With -reencode, encode the video in pieces of about this many seconds "
+                + "at the same time, then join them.  Use with -run");
+        options.addOption("run", "Run ffmpeg instead of creating a script");
+        options.addOption("ffmpeg", true, "The path of ffmpeg, used with -run.  The default is ffmpeg");
+        options.addOption("jobs", true, "The number of ffmpeg commands to run at once with -run.  The default is the number "
+                + "of cores, or up to 4 when copying the stream");
+        options.addOption("offset", true, "Sets the offset of the video in milliseconds.  Use auto to find it by "
+                + "lining up the speeds from the video and the gps files");
         options.addOption("trimStart", true, "Trims the start of the file in milliseconds");
         options.addOption("trimEnd", true, "Trims the end of the file in milliseconds");
         options.addOption("maxSizeMB", true, "Sets the maximum size if reencoding with a specified bitrate.  The default is unlimited");
@@ -117,11 +160,20 @@ public class GoPro2Trainer {
         options.addOption("help", "Displays this message");
         options.addOption("elevation", true, "A gps file that is used only for elevation data. It will replace "
                 + "the existing gps data with elevations that are the closest match");
+        options.addOption("elevationStore", true, "A directory of elevations from past rides.  If there isn't an "
+                + "-elevation file, the elevations are looked up here by location");
+        options.addOption("addToElevationStore", true, "A gpx or tcx file, or a directory of them, to add to the elevation store");
+        options.addOption("dem", true, "A directory of SRTM .hgt files.  The elevations will be replaced with the ones from these files");
+        options.addOption("smoothWindow", true, "The number of points used to smooth the elevations.  The default is 47");
+        options.addOption("smoothOrder", true, "The degree of the curve used to smooth the elevations.  The default is 4");
+        options.addOption("smoothDistance", true, "Smooth the elevations over distance instead of time, resampled every given number of meters");
         options.addOption("slope", true, "Changes the overall slope by the given decimal percentage.  Use .01 for 1%");
-        options.addOption("advanceElevation", true, "Moves up elevation data by the given number of milliseconds.");
+        options.addOption("advanceElevation", true, "Moves up elevation data by the given number of milliseconds.  Use auto "
+                + "to find it by lining up the elevation changes with the power data");
         options.addOption("fixLoopElevation", "Adjusts the elevations so the ending elevation matches the beginning elevation");
         options.addOption("filter", true, "a complex ffmpeg filter. For example, \"crop=h=in_h-156[t];[t]fps=fps=29.97\"");
         options.addOption("encode", true, "H.264 encode options to pass to ffmpeg");
+        options.addOption("noCache", "Don't read or write the .g2t files that save the data read from each mp4");
         CommandLineParser parser = new DefaultParser();
         boolean invalid = false;
         try {
@@ -188,7 +240,12 @@ public class GoPro2Trainer {
             throw new RuntimeException("could not find any mp4 or gpx files");
         }
 
-        offset = Long.parseLong(cmd.getOptionValue("offset", "0"));
+        Mp4Cache.enabled = !cmd.hasOption("noCache");
+        String offsetStr = cmd.getOptionValue("offset", "0");
+        autoOffset = offsetStr.equalsIgnoreCase("auto");
+        if (!autoOffset) {
+            offset = Long.parseLong(offsetStr);
+        }
         trimStart = Long.parseLong(cmd.getOptionValue("trimStart", "0"));
         trimEnd = Long.parseLong(cmd.getOptionValue("trimEnd", "0"));
         
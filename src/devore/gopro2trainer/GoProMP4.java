@@ -16,103 +16,262 @@
  */
 package devore.gopro2trainer;
 
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.Sample;
-import com.googlecode.mp4parser.authoring.Track;
-import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import static java.nio.charset.StandardCharsets.US_ASCII;
-import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class to read the metadata and gps data from a gopro MP4.
+ * <p>
+ * Files are only parsed once.  Use {@link #get(File)} to share the result between the gps and
+ * video loaders, and {@link #loadAll(Collection, Collection)} to parse a set of files in parallel.
  */
 public class GoProMP4 {
     private static final Logger logger = Logger.getLogger(GoProMP4.class.getName());
-    private static final DateTimeFormatter FORMAT = 
-        DateTimeFormatter.ofPattern ("uuuuMMddHHmmss.SSS").withZone(ZoneOffset.UTC);
+    private static final Map<File, GoProMP4> loaded = new ConcurrentHashMap<>();
     private final File file;
-    private long creationTime;
+    /** seconds from 1970 in the camera's local time */
+    private long creationSeconds;
     private long duration;
-    private List<Point> points;
-    private Track track;
+    private long[] keyframes;
+    private Track points;
+    private long firstTimestamp = -1;
+    private boolean probed;
+    /** true if the sidecar cache has everything that has been read */
+    private boolean cacheCurrent;
+    /** the mapped file.  It is only kept while reading, and opened again if needed. */
+    private Mp4Reader reader;
+    private Mp4Reader.Mp4Track videoTrack;
+    private Mp4Reader.Mp4Track track;
+    /** The gps decoder and the next sample to read, so probing and full reads share the work */
+    private GPMF gpmf;
+    private int nextSample;
     
+    /**
+     * Reads the file's metadata, or takes it from the sidecar cache if it is current.
+     */
     public GoProMP4(File f) throws IOException {
         this.file = f;
-        Movie mWithVideo = MovieCreator.build(f.toString());
-        for (Track trk : mWithVideo.getTracks()) {
-            if (trk.getHandler().equals("vide")) {
-                duration = trk.getDuration() * 1000 / trk.getTrackMetaData().getTimescale();
-                // GoPro saves time as localtime instead of UTC
-                Instant instant = trk.getTrackMetaData().getCreationTime().toInstant();
-                LocalDateTime ldt = LocalDateTime.parse(FORMAT.format(instant), FORMAT);
-                creationTime = ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Mp4Cache.Entry entry = Mp4Cache.read(f);
+        if (entry != null) {
+            creationSeconds = entry.creationSeconds;
+            duration = entry.duration;
+            keyframes = entry.keyframes;
+            firstTimestamp = entry.firstTimestamp;
+            points = entry.points;
+            probed = true;
+            cacheCurrent = true;
+        } else {
+            openReader();
+        }
+    }
+
+    /**
+     * Maps the file and reads the moov headers.  The sample tables are only read when needed.
+     */
+    private void openReader() throws IOException {
+        reader = new Mp4Reader(file);
+        for (Mp4Reader.Mp4Track trk : reader.getTracks()) {
+            if (trk.handler == Mp4Reader.VIDE) {
+                videoTrack = trk;
+                duration = trk.getDurationMillis();
+                creationSeconds = trk.getCreationSeconds();
             }
-            if (trk.getHandler().equals("meta")) {
-                Sample s = trk.getSamples().get(0);
-                byte[] buffer = new byte[4];
-                s.asByteBuffer().get(buffer);
-                if (new String(buffer, US_ASCII).equals("DEVC")) {
+            if (trk.handler == Mp4Reader.META && trk.getSampleCount() > 0) {
+                ByteBuffer sample = trk.getSample(0);
+                if (sample.remaining() >= 4 && sample.getInt(0) == GPMF.DEVC) {
                     this.track = trk;
                 }
             }
         }
+        if (keyframes == null) {
+            keyframes = videoTrack == null ? new long[0] : videoTrack.getKeyframeTimes();
+        }
+    }
+
+    /**
+     * Drops the mapped file, so its address space can be freed.
+     */
+    private void closeReader() {
+        reader = null;
+        videoTrack = null;
+        track = null;
     }
     
+    /**
+     * Returns the given file, parsing it if it hasn't been already.
+     */
+    public static GoProMP4 get(File f) throws IOException {
+        File key = f.getCanonicalFile();
+        GoProMP4 mp4 = loaded.get(key);
+        if (mp4 == null) {
+            mp4 = new GoProMP4(key);
+            GoProMP4 existing = loaded.putIfAbsent(key, mp4);
+            if (existing != null) {
+                mp4 = existing;
+            }
+        }
+        return mp4;
+    }
+
+    /**
+     * Parses the given files on a thread pool sized to the number of processors.  Each file
+     * is only read once, even if it is in both lists.
+     *
+     * @param videoFiles files where only the timestamp and duration are needed
+     * @param gpsFiles files where all of the gps points are needed
+     */
+    public static void loadAll(Collection<File> videoFiles, Collection<File> gpsFiles) throws IOException {
+        Map<File, Boolean> files = new LinkedHashMap<>();
+        for (File f : videoFiles) {
+            files.put(f.getCanonicalFile(), false);
+        }
+        for (File f : gpsFiles) {
+            files.put(f.getCanonicalFile(), true);
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<GoProMP4>> results = new ArrayList<>();
+            for (Map.Entry<File, Boolean> entry : files.entrySet()) {
+                File f = entry.getKey();
+                boolean readAll = entry.getValue();
+                results.add(pool.submit(() -> {
+                    GoProMP4 mp4 = get(f);
+                    mp4.readTrack(readAll);
+                    return mp4;
+                }));
+            }
+            for (Future<GoProMP4> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.log(Level.INFO, "Loaded {0} mp4 files in {1} ms on {2} threads", 
+                new Object[] {files.size(), System.currentTimeMillis() - time, threads});
+    }
+
     /**
      * Returns the start time of the mp4. It will use the first gps timestamp if available, otherwise
      * it will use the creation time from the mp4 metadata.
      */
     public long getTimestamp() throws IOException {
         readTrack(false);
-        if (getPoints().isEmpty()) {
+        if (firstTimestamp < 0) {
             return getCreationTime();
         } else {
-            long gpsTimestamp = getPoints().get(0).timestamp;
+            long gpsTimestamp = firstTimestamp;
             logger.log(Level.INFO, "{0} gps timestamp is {1}. Creation date is {2}", new Object[]{
-                file.getName(), Utils.formatDateTime(gpsTimestamp), Utils.formatDateTime(creationTime)});
+                file.getName(), Utils.formatDateTime(gpsTimestamp), Utils.formatDateTime(getCreationTime())});
             return gpsTimestamp;
         }
     }
 
     public long getCreationTime() {
-        return creationTime;
+        // GoPro saves time as localtime instead of UTC
+        LocalDateTime ldt = LocalDateTime.ofEpochSecond(creationSeconds, 0, ZoneOffset.UTC);
+        return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     public long getDuration() {
         return duration;
     }
+
+    /**
+     * Returns the times of the video keyframes in milliseconds from the start of the file.
+     */
+    public long[] getKeyframes() {
+        return keyframes;
+    }
     
-    public List<Point> getPoints() throws IOException {
+    /**
+     * Returns all of the gps samples in the file.
+     */
+    public Track getTrack() throws IOException {
         readTrack(true);
         return points;
     }
 
-    private void readTrack(boolean readAll) throws IOException {
-        if (points == null) {
-            if (track != null) {
-                GPMF gpmf = new GPMF();
-                for (Sample sample : track.getSamples()) {
-                    ByteBuffer buf = sample.asByteBuffer();
-                    gpmf.readStream(buf);
-                    if (!readAll && !gpmf.getPoints().isEmpty()) {
-                        break;
-                    }
+    /**
+     * Reads the gps data.  If readAll is false, it stops once the first timestamp is known.
+     */
+    private synchronized void readTrack(boolean readAll) throws IOException {
+        if (points != null || (!readAll && probed)) {
+            return;
+        }
+        boolean wasProbed = probed;
+        long oldTimestamp = firstTimestamp;
+        if (reader == null) {
+            openReader();
+        }
+        if (gpmf == null) {
+            gpmf = new GPMF();
+        }
+        if (track != null) {
+            while (nextSample < track.getSampleCount()) {
+                gpmf.readStream(track.getSample(nextSample++));
+                if (!readAll && gpmf.getFirstTimestamp() >= 0) {
+                    break;
                 }
-                points = gpmf.getPoints();
-            } else {
-                points = Collections.emptyList();
             }
         }
+        firstTimestamp = gpmf.getFirstTimestamp();
+        if (readAll) {
+            Track gpsTrack = gpmf.getTrack();
+            gpsTrack.trimToSize();
+            points = gpsTrack;
+            gpmf = null;
+        }
+        probed = true;
+        if (readAll || !wasProbed || firstTimestamp != oldTimestamp) {
+            cacheCurrent = false;
+        }
+        // the gpmf decoder keeps its place, so a later full read picks up where this left off
+        closeReader();
+        writeCache();
+    }
+
+    private void writeCache() {
+        if (cacheCurrent) {
+            return;
+        }
+        Mp4Cache.Entry entry = new Mp4Cache.Entry();
+        entry.creationSeconds = creationSeconds;
+        entry.duration = duration;
+        entry.keyframes = getKeyframes();
+        entry.firstTimestamp = firstTimestamp;
+        entry.points = points;
+        Mp4Cache.write(file, entry);
+        cacheCurrent = true;
     }
 }
@@ -16,92 +16,176 @@
  */
 package devore.gopro2trainer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
 import java.util.Locale;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Loads gps data. It supports gpx, tcx, and GoPro mp4 files
+ * <p>
+ * The xml formats are read in a single streaming pass, straight into a {@link Track}.
  */
 public class GpsLoader {
-    public static List<Point> load(File f) throws ParserConfigurationException, IOException, SAXException {
+    private static final Logger logger = Logger.getLogger(GpsLoader.class.getName());
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    public static Track loadTrack(File f) throws IOException {
         String name = f.getName().toLowerCase(Locale.US);
         if (name.endsWith(".mp4")) {
-            GoProMP4 mp4 = new GoProMP4(f);
-            return mp4.getPoints();
-        } else {
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(f);
-            if (name.endsWith(".gpx")) {
-                return loadGPX(doc);
-            } else if (name.endsWith(".tcx")) {
-                return loadTCX(doc);
-            } else {
-                throw new RuntimeException("Unknown gps file type: "+f);
+            GoProMP4 mp4 = GoProMP4.get(f);
+            return mp4.getTrack();
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            XMLStreamReader reader;
+            synchronized (factory) {
+                reader = factory.createXMLStreamReader(in);
+            }
+            try {
+                if (name.endsWith(".gpx")) {
+                    return loadGPX(reader);
+                } else if (name.endsWith(".tcx")) {
+                    return loadTCX(reader);
+                } else {
+                    throw new RuntimeException("Unknown gps file type: "+f);
+                }
+            } finally {
+                reader.close();
             }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse " + f + ": " + e.getMessage(), e);
         }
     }
-    
-    public static List<Point> loadTCX(Document doc) {
-        ArrayList<Point> retVal = new ArrayList<>();
-        NodeList nodes = doc.getElementsByTagName("Trackpoint");
-        System.out.println("nodes: "+nodes.getLength());
+
+    public static Track loadTCX(XMLStreamReader reader) throws XMLStreamException {
+        Track retVal = new Track();
+        TimeParser parser = new TimeParser();
+        boolean inPoint = false;
+        long timestamp = 0;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        double elevation = Double.NaN;
+        double speed = Double.NaN;
+        double power = Double.NaN;
         long last = 0;
-        for (int i=0; i < nodes.getLength(); i++) {
-            Element element = (Element) nodes.item(i);
-            Element child = (Element) element.getElementsByTagName("Time").item(0);
-            long timestamp = Instant.parse(child.getTextContent()).toEpochMilli();
-            if (timestamp == last) {
-                continue;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                if (tag.equals("Trackpoint")) {
+                    inPoint = true;
+                    timestamp = 0;
+                    lat = Double.NaN;
+                    lon = Double.NaN;
+                    elevation = Double.NaN;
+                    speed = Double.NaN;
+                    power = Double.NaN;
+                } else if (inPoint) {
+                    switch (tag) {
+                        case "Time":
+                            timestamp = getTime(reader, parser);
+                            break;
+                        case "LatitudeDegrees":
+                            lat = getDouble(reader);
+                            break;
+                        case "LongitudeDegrees":
+                            lon = getDouble(reader);
+                            break;
+                        case "AltitudeMeters":
+                            elevation = getDouble(reader);
+                            break;
+                        case "Speed":
+                            speed = getDouble(reader);
+                            break;
+                        case "Watts":
+                            power = getDouble(reader);
+                            break;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("Trackpoint")) {
+                inPoint = false;
+                if (timestamp == last) {
+                    continue;
+                }
+                last = timestamp;
+                retVal.add(timestamp, lat, lon, elevation, speed * Track.MS_TO_MPH, power);
             }
-            last = timestamp;
-            double lat = getDouble(element, "LatitudeDegrees");
-            double lon = getDouble(element, "LongitudeDegrees");
-            double elevation = getDouble(element, "AltitudeMeters");
-            double speed = getDouble(element, "ns3:Speed") * Point.MS_TO_MPH;
-            double power = getDouble(element, "ns3:Watts");
-            Point pt = new Point(lat, lon, timestamp, elevation);
-            pt.speed = speed;
-            pt.power = power;
-            retVal.add(pt);
         }
+        logger.log(Level.FINE, "trackpoints: {0}", retVal.size());
+        retVal.trimToSize();
         return retVal;
     }
-    
-    public static List<Point> loadGPX(Document gpx) {
-        List<Point> retVal = new ArrayList<>();
-        NodeList trkptList = gpx.getElementsByTagName("trkpt");
-        for (int i=0; i < trkptList.getLength();i++) {
-            Element element = (Element) trkptList.item(i);
-            double lat = Double.parseDouble(element.getAttribute("lat"));
-            double lon = Double.parseDouble(element.getAttribute("lon"));
-            Element ele = (Element) element.getElementsByTagName("time").item(0);
-            String time = ele.getTextContent();
-            long timestamp = Instant.parse(time).toEpochMilli();
-            ele = (Element) element.getElementsByTagName("ele").item(0);
-            double elevation = Double.parseDouble(ele.getTextContent());
-            Point pt = new Point(lat, lon, timestamp, elevation);
-            pt.power = getDouble(element, "power");
+
+    public static Track loadGPX(XMLStreamReader reader) throws XMLStreamException {
+        Track retVal = new Track();
+        TimeParser parser = new TimeParser();
+        boolean inPoint = false;
+        long timestamp = 0;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        double elevation = Double.NaN;
+        double power = Double.NaN;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                if (tag.equals("trkpt")) {
+                    inPoint = true;
+                    lat = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+                    lon = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+                    timestamp = 0;
+                    elevation = Double.NaN;
+                    power = Double.NaN;
+                } else if (inPoint) {
+                    switch (tag) {
+                        case "time":
+                            timestamp = getTime(reader, parser);
+                            break;
+                        case "ele":
+                            elevation = getDouble(reader);
+                            break;
+                        case "power":
+                            power = getDouble(reader);
+                            break;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("trkpt")) {
+                inPoint = false;
+                retVal.add(timestamp, lat, lon, elevation, Double.NaN, power);
+            }
         }
+        retVal.trimToSize();
         return retVal;
     }
 
-    public static double getDouble(Element ele, String tag) {
-        NodeList nodes = ele.getElementsByTagName(tag);
-        if (nodes.getLength() > 0) {
-            return Double.parseDouble(nodes.item(0).getTextContent());
+    /**
+     * Reads the text of the current element as a timestamp, without copying it to a string.
+     */
+    private static long getTime(XMLStreamReader reader, TimeParser parser) throws XMLStreamException {
+        if (reader.next() != XMLStreamConstants.CHARACTERS) {
+            throw new XMLStreamException("Missing time", reader.getLocation());
         }
-        return Double.NaN;
+        return parser.parseIso(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+    }
+
+    /**
+     * Reads the text of the current element as a double.
+     */
+    private static double getDouble(XMLStreamReader reader) throws XMLStreamException {
+        return Double.parseDouble(reader.getElementText().trim());
     }
 }
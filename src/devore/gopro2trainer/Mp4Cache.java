@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves what was read from a GoPro mp4 in a small binary file next to it (.GH010123.MP4.g2t),
+ * so later runs don't have to parse the mp4 again.  An entry is only used if the path, size
+ * and modification time of the mp4 still match.
+ * <p>
+ * Gps samples are stored as fixed point whatever the SCAL of the stream was: time deltas in
+ * milliseconds, latitude and longitude in 1E-7 degrees and elevation in millimeters.  That
+ * is as fine as GoPro cameras record them.  The creation time is stored as the camera's
+ * local time, and the time zone is applied when it is read, so the cache doesn't depend on it.
+ */
+class Mp4Cache {
+    private static final Logger logger = Logger.getLogger(Mp4Cache.class.getName());
+    private static final int MAGIC = 0x47325443;
+    private static final int VERSION = 3;
+    static boolean enabled = true;
+
+    /**
+     * The values that are cached for each file.
+     */
+    static class Entry {
+        /** seconds from 1970 in the camera's local time */
+        long creationSeconds;
+        long duration;
+        long firstTimestamp = -1;
+        long[] keyframes;
+        /** null if the gps samples haven't been read yet */
+        Track points;
+    }
+
+    static File getCacheFile(File mp4) {
+        return new File(mp4.getParentFile(), "." + mp4.getName() + ".g2t");
+    }
+
+    /**
+     * Returns the cached entry for the file, or null if there isn't a current one.
+     */
+    static Entry read(File mp4) {
+        File cacheFile = getCacheFile(mp4);
+        if (!enabled || !cacheFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(mp4.getPath())
+                    || in.readLong() != mp4.length()
+                    || in.readLong() != mp4.lastModified()) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.creationSeconds = in.readLong();
+            entry.duration = in.readLong();
+            entry.firstTimestamp = in.readLong();
+            entry.keyframes = new long[in.readInt()];
+            for (int i = 0; i < entry.keyframes.length; i++) {
+                entry.keyframes[i] = in.readInt();
+            }
+            int count = in.readInt();
+            if (count >= 0) {
+                Track track = new Track(count);
+                long time = in.readLong();
+                for (int i = 0; i < count; i++) {
+                    time += in.readInt();
+                    track.add(time, in.readInt() / 1E7, in.readInt() / 1E7, in.readInt() / 1E3);
+                }
+                entry.points = track;
+            }
+            logger.log(Level.FINE, "Using cached data for {0}", mp4.getName());
+            return entry;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not read " + cacheFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry.  Failures (such as a read only card) are logged and otherwise ignored.
+     */
+    static void write(File mp4, Entry entry) {
+        if (!enabled) {
+            return;
+        }
+        File cacheFile = getCacheFile(mp4);
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(mp4.getPath());
+                out.writeLong(mp4.length());
+                out.writeLong(mp4.lastModified());
+                out.writeLong(entry.creationSeconds);
+                out.writeLong(entry.duration);
+                out.writeLong(entry.firstTimestamp);
+                out.writeInt(entry.keyframes.length);
+                for (long keyframe : entry.keyframes) {
+                    out.writeInt((int) keyframe);
+                }
+                Track track = entry.points;
+                if (track == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(track.size());
+                    long time = track.isEmpty() ? 0 : track.timestamp[0];
+                    out.writeLong(time);
+                    for (int i = 0; i < track.size(); i++) {
+                        out.writeInt((int) (track.timestamp[i] - time));
+                        out.writeInt((int) Math.round(track.lat[i] * 1E7));
+                        out.writeInt((int) Math.round(track.lon[i] * 1E7));
+                        out.writeInt((int) Math.round(track.elevation[i] * 1E3));
+                        time = track.timestamp[i];
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not write " + cacheFile, e);
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal mp4 reader.  It memory maps the file and only walks the boxes needed to get the
+ * track durations, creation times and sample locations (moov/trak/mdia/minf/stbl).  Nothing is
+ * copied to the heap except the sample tables of the tracks that are actually read.
+ */
+class Mp4Reader {
+    static final int MOOV = 0x6d6f6f76;
+    static final int TRAK = 0x7472616b;
+    static final int MDIA = 0x6d646961;
+    static final int MDHD = 0x6d646864;
+    static final int HDLR = 0x68646c72;
+    static final int DHLR = 0x64686c72;
+    static final int MINF = 0x6d696e66;
+    static final int STBL = 0x7374626c;
+    static final int STSZ = 0x7374737a;
+    static final int STSC = 0x73747363;
+    static final int STCO = 0x7374636f;
+    static final int CO64 = 0x636f3634;
+    static final int STTS = 0x73747473;
+    static final int STSS = 0x73747373;
+    static final int CTTS = 0x63747473;
+
+    static final int VIDE = 0x76696465;
+    static final int META = 0x6d657461;
+
+    /** Seconds between the mp4 epoch (1904) and the unix epoch */
+    private static final long MP4_EPOCH_OFFSET = 2082844800L;
+    /** Files are mapped in segments, as a single mapping is limited to 2GB */
+    private static final long SEGMENT_SIZE = 1L << 30;
+    /** Segments overlap by this much so a box header or sample never has to span two mappings */
+    private static final long SEGMENT_OVERLAP = 64L << 20;
+
+    private final File file;
+    private final MappedByteBuffer[] segments;
+    private final List<Mp4Track> tracks = new ArrayList<>();
+
+    Mp4Reader(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int count = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT_SIZE;
+                long length = Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            readTopLevel(size);
+        }
+    }
+
+    List<Mp4Track> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Returns the first track with the given handler type, or null.
+     */
+    Mp4Track getTrack(int handler) {
+        for (Mp4Track track : tracks) {
+            if (track.handler == handler) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a view of the given region of the file.  No data is copied.
+     */
+    ByteBuffer slice(long offset, int size) throws IOException {
+        int index = (int) (offset / SEGMENT_SIZE);
+        if (offset < 0 || index >= segments.length) {
+            throw new IOException("Offset " + offset + " is outside of " + file);
+        }
+        MappedByteBuffer segment = segments[index];
+        int start = (int) (offset - index * SEGMENT_SIZE);
+        if (start + (long) size > segment.capacity()) {
+            throw new IOException("Region at " + offset + " runs past the end of " + file);
+        }
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(start);
+        buffer.limit(start + size);
+        return buffer.slice();
+    }
+
+    private void readTopLevel(long fileSize) throws IOException {
+        long pos = 0;
+        while (pos + 8 <= fileSize) {
+            ByteBuffer header = slice(pos, (int) Math.min(16, fileSize - pos));
+            long size = Integer.toUnsignedLong(header.getInt(0));
+            int type = header.getInt(4);
+            if (size == 1) {
+                size = header.getLong(8);
+            } else if (size == 0) {
+                size = fileSize - pos;
+            }
+            if (size < 8) {
+                throw new IOException("Invalid box size in " + file);
+            }
+            if (type == MOOV) {
+                readMoov(slice(pos, (int) size));
+                return;
+            }
+            pos += size;
+        }
+        throw new IOException("No moov box found in " + file);
+    }
+
+    private void readMoov(ByteBuffer moov) {
+        for (int pos = firstBox(moov); pos >= 0; pos = nextBox(moov, pos)) {
+            if (moov.getInt(pos + 4) == TRAK) {
+                Mp4Track track = new Mp4Track();
+                readTrak(child(moov, pos), track);
+                tracks.add(track);
+            }
+        }
+    }
+
+    private void readTrak(ByteBuffer box, Mp4Track track) {
+        for (int pos = firstBox(box); pos >= 0; pos = nextBox(box, pos)) {
+            int type = box.getInt(pos + 4);
+            if (type == MDIA || type == MINF || type == STBL) {
+                readTrak(child(box, pos), track);
+            } else if (type == MDHD) {
+                ByteBuffer mdhd = child(box, pos);
+                if (mdhd.get(8) == 1) {
+                    track.creationTime = mdhd.getLong(12);
+                    track.timescale = Integer.toUnsignedLong(mdhd.getInt(28));
+                    track.mediaDuration = mdhd.getLong(32);
+                } else {
+                    track.creationTime = Integer.toUnsignedLong(mdhd.getInt(12));
+                    track.timescale = Integer.toUnsignedLong(mdhd.getInt(20));
+                    track.mediaDuration = Integer.toUnsignedLong(mdhd.getInt(24));
+                }
+            } else if (type == HDLR && box.getInt(pos + 12) != DHLR) {
+                // QuickTime files also have a data handler in minf, which isn't the track type
+                track.handler = box.getInt(pos + 16);
+            } else if (type == STSZ) {
+                track.stsz = child(box, pos);
+            } else if (type == STSC) {
+                track.stsc = child(box, pos);
+            } else if (type == STCO || type == CO64) {
+                track.chunkOffsets = child(box, pos);
+            } else if (type == STTS) {
+                track.stts = child(box, pos);
+            } else if (type == STSS) {
+                track.stss = child(box, pos);
+            } else if (type == CTTS) {
+                track.ctts = child(box, pos);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the first child of a container box, or -1 if it is empty.
+     */
+    private static int firstBox(ByteBuffer box) {
+        return box.limit() >= 16 ? 8 : -1;
+    }
+
+    /**
+     * Returns the position of the box after the one at pos, or -1 if there are no more.
+     */
+    private static int nextBox(ByteBuffer box, int pos) {
+        long size = Integer.toUnsignedLong(box.getInt(pos));
+        if (size == 1) {
+            size = box.getLong(pos + 8);
+        } else if (size == 0) {
+            size = box.limit() - pos;
+        }
+        long next = pos + Math.max(size, 8);
+        return next + 8 <= box.limit() ? (int) next : -1;
+    }
+
+    /**
+     * Returns a view of the box at pos, including its header.
+     */
+    private static ByteBuffer child(ByteBuffer box, int pos) {
+        long size = Integer.toUnsignedLong(box.getInt(pos));
+        if (size == 1) {
+            size = box.getLong(pos + 8);
+        }
+        if (size == 0 || pos + size > box.limit()) {
+            size = box.limit() - pos;
+        }
+        ByteBuffer view = box.duplicate();
+        view.position(pos);
+        view.limit(pos + (int) size);
+        return view.slice();
+    }
+
+    /**
+     * The parts of a trak box that are needed.  The sample tables are left in the mapped file
+     * until they are asked for.
+     */
+    class Mp4Track {
+        int handler;
+        long timescale;
+        long mediaDuration;
+        /** Seconds since 1904-01-01 */
+        long creationTime;
+        private ByteBuffer stsz;
+        private ByteBuffer stsc;
+        private ByteBuffer chunkOffsets;
+        private ByteBuffer stts;
+        private ByteBuffer stss;
+        private ByteBuffer ctts;
+        private long[] sampleOffsets;
+        private int[] sampleSizes;
+
+        /**
+         * Returns the creation time in seconds since 1970, as recorded.
+         */
+        long getCreationSeconds() {
+            return creationTime - MP4_EPOCH_OFFSET;
+        }
+
+        /**
+         * Returns the duration in milliseconds.  It uses the sum of the sample durations.
+         */
+        long getDurationMillis() {
+            long total = 0;
+            if (stts != null) {
+                int count = stts.getInt(12);
+                for (int i = 0; i < count; i++) {
+                    total += Integer.toUnsignedLong(stts.getInt(16 + i * 8))
+                            * Integer.toUnsignedLong(stts.getInt(20 + i * 8));
+                }
+            } else {
+                total = mediaDuration;
+            }
+            return timescale == 0 ? 0 : total * 1000 / timescale;
+        }
+
+        /**
+         * Returns the presentation time in milliseconds of every sync sample (keyframe), using
+         * the stss, stts and ctts tables.  If there is no stss table every sample is a sync
+         * sample.  Times are relative to the first frame shown, and are rounded up, so seeking
+         * to one never lands just before the keyframe.
+         */
+        long[] getKeyframeTimes() {
+            int sampleCount = getSampleCount();
+            if (stts == null || timescale == 0) {
+                return new long[0];
+            }
+            int syncCount = stss == null ? sampleCount : stss.getInt(12);
+            long[] times = new long[syncCount];
+            int found = 0;
+            // next sync sample, zero based
+            int sync = syncCount == 0 ? -1 : (stss == null ? 0 : stss.getInt(16) - 1);
+            int sample = 0;
+            long time = 0;
+            CompositionOffsets composition = new CompositionOffsets();
+            long firstOffset = composition.get(0);
+            int entries = stts.getInt(12);
+            for (int e = 0; e < entries && sync >= 0; e++) {
+                long count = Integer.toUnsignedLong(stts.getInt(16 + e * 8));
+                long delta = Integer.toUnsignedLong(stts.getInt(20 + e * 8));
+                long end = sample + count;
+                while (sync >= 0 && sync < end) {
+                    long units = time + (sync - sample) * delta + composition.get(sync) - firstOffset;
+                    times[found++] = Math.floorDiv(units * 1000 + timescale - 1, timescale);
+                    if (found == syncCount) {
+                        sync = -1;
+                    } else {
+                        sync = stss == null ? sync + 1 : stss.getInt(16 + found * 4) - 1;
+                    }
+                }
+                time += count * delta;
+                sample = (int) end;
+            }
+            return found == times.length ? times : Arrays.copyOf(times, found);
+        }
+
+        /**
+         * Walks the ctts table.  Samples must be asked for in increasing order.
+         */
+        private class CompositionOffsets {
+            private int entry;
+            private long entryEnd = ctts == null || ctts.getInt(12) == 0 ? 0 : Integer.toUnsignedLong(ctts.getInt(16));
+
+            /**
+             * Returns the composition offset of the sample, in timescale units.
+             */
+            long get(int sample) {
+                if (ctts == null) {
+                    return 0;
+                }
+                int entries = ctts.getInt(12);
+                while (sample >= entryEnd && entry < entries - 1) {
+                    entry++;
+                    entryEnd += Integer.toUnsignedLong(ctts.getInt(16 + entry * 8));
+                }
+                if (sample >= entryEnd) {
+                    return 0;
+                }
+                // version 0 offsets are unsigned, but in practice are written as signed values
+                return ctts.getInt(20 + entry * 8);
+            }
+        }
+
+        int getSampleCount() {
+            return stsz == null ? 0 : stsz.getInt(16);
+        }
+
+        /**
+         * Returns a view of the given sample in the mapped file.
+         */
+        ByteBuffer getSample(int index) throws IOException {
+            if (index == 0 && sampleOffsets == null) {
+                // the first sample is always at the start of the first chunk
+                return slice(getChunkOffset(0), getSampleSize(0));
+            }
+            resolveSamples();
+            return slice(sampleOffsets[index], sampleSizes[index]);
+        }
+
+        private long getChunkOffset(int chunk) throws IOException {
+            if (chunkOffsets == null) {
+                throw new IOException("Missing chunk offsets in " + file);
+            }
+            return chunkOffsets.getInt(4) == CO64 ? chunkOffsets.getLong(16 + chunk * 8)
+                    : Integer.toUnsignedLong(chunkOffsets.getInt(16 + chunk * 4));
+        }
+
+        private int getSampleSize(int sample) {
+            int fixedSize = stsz.getInt(12);
+            return fixedSize != 0 ? fixedSize : stsz.getInt(20 + sample * 4);
+        }
+
+        /**
+         * Works out the file offset of every sample from the chunk offsets (stco or co64),
+         * the sample to chunk table and the sample sizes.
+         */
+        private void resolveSamples() throws IOException {
+            if (sampleOffsets != null) {
+                return;
+            }
+            int count = getSampleCount();
+            if (count == 0) {
+                sampleOffsets = new long[0];
+                sampleSizes = new int[0];
+                return;
+            }
+            if (stsc == null || chunkOffsets == null) {
+                throw new IOException("Missing sample tables in " + file);
+            }
+            long[] offsets = new long[count];
+            int[] sizes = new int[count];
+            int chunkCount = chunkOffsets.getInt(12);
+            int entries = stsc.getInt(12);
+            int sample = 0;
+            for (int e = 0; e < entries && sample < count; e++) {
+                int firstChunk = stsc.getInt(16 + e * 12) - 1;
+                int perChunk = stsc.getInt(20 + e * 12);
+                int lastChunk = e + 1 < entries ? stsc.getInt(28 + e * 12) - 1 : chunkCount;
+                for (int chunk = firstChunk; chunk < lastChunk && sample < count; chunk++) {
+                    long offset = getChunkOffset(chunk);
+                    for (int i = 0; i < perChunk && sample < count; i++) {
+                        int size = getSampleSize(sample);
+                        offsets[sample] = offset;
+                        sizes[sample] = size;
+                        offset += size;
+                        sample++;
+                    }
+                }
+            }
+            sampleOffsets = offsets;
+            sampleSizes = sizes;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import com.coremedia.iso.boxes.Container;
+import com.coremedia.iso.boxes.MovieBox;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
+import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
+import devore.gopro2trainer.VideoHelper.Clip;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the clips straight to the output mp4, without running ffmpeg.  The samples of each
+ * clip are copied from the source files and the sample tables are rebuilt, so there are no
+ * intermediate cut files.  Only the video track is kept, the same as the ffmpeg script.
+ */
+class Mp4Remuxer {
+    private static final Logger logger = Logger.getLogger(Mp4Remuxer.class.getName());
+
+    static void remux(List<Clip> clips, File output, long creationTime) throws IOException {
+        if (clips.isEmpty()) {
+            logger.log(Level.WARNING, "None of the video is in the ranges to keep, so there is nothing to write");
+            return;
+        }
+        // the source files are open until they are closed with their tracks
+        Map<File, Movie> sources = new HashMap<>();
+        try {
+            List<com.googlecode.mp4parser.authoring.Track> pieces = new ArrayList<>();
+            for (Clip clip : clips) {
+                Movie source = sources.get(clip.file.file);
+                if (source == null) {
+                    source = MovieCreator.build(clip.file.file.toString());
+                    sources.put(clip.file.file, source);
+                }
+                pieces.add(crop(getVideoTrack(source, clip.file.file), clip));
+            }
+            Movie movie = new Movie();
+            movie.addTrack(pieces.size() == 1 ? pieces.get(0) : new AppendTrack(pieces.toArray(
+                    new com.googlecode.mp4parser.authoring.Track[pieces.size()])));
+            Container container = new DefaultMp4Builder().build(movie);
+            container.getBoxes(MovieBox.class).get(0).getMovieHeaderBox().setCreationTime(new Date(creationTime));
+            logger.log(Level.INFO, "Writing {0}", output);
+            boolean written = false;
+            try (FileOutputStream out = new FileOutputStream(output);
+                    FileChannel channel = out.getChannel()) {
+                container.writeContainer(channel);
+                written = true;
+            } finally {
+                if (!written) {
+                    output.delete();
+                }
+            }
+        } finally {
+            for (Movie source : sources.values()) {
+                for (com.googlecode.mp4parser.authoring.Track track : source.getTracks()) {
+                    track.close();
+                }
+            }
+        }
+    }
+
+    private static com.googlecode.mp4parser.authoring.Track getVideoTrack(Movie movie, File file) throws IOException {
+        for (com.googlecode.mp4parser.authoring.Track trk : movie.getTracks()) {
+            if (trk.getHandler().equals("vide")) {
+                return trk;
+            }
+        }
+        throw new IOException("There is no video in " + file);
+    }
+
+    /**
+     * Returns the samples of the track covered by the clip.  It starts on the keyframe closest
+     * to the start, and ends with the last sample that starts before the end.
+     */
+    private static com.googlecode.mp4parser.authoring.Track crop(com.googlecode.mp4parser.authoring.Track track, Clip clip) {
+        long[] durations = track.getSampleDurations();
+        if (clip.whole) {
+            return new CroppedTrack(track, 0, durations.length);
+        }
+        long timescale = track.getTrackMetaData().getTimescale();
+        long start = Math.round(clip.start * timescale);
+        long end = Math.round((clip.start + clip.length) * timescale);
+        long[] syncSamples = track.getSyncSamples();
+        int first = 0;
+        long firstDistance = Long.MAX_VALUE;
+        int sync = 0;
+        long time = 0;
+        int last = 0;
+        for (; last < durations.length && time < end; last++) {
+            // the sync samples are numbered from 1
+            if (syncSamples == null || sync < syncSamples.length && syncSamples[sync] == last + 1) {
+                sync++;
+                if (Math.abs(time - start) < firstDistance) {
+                    first = last;
+                    firstDistance = Math.abs(time - start);
+                }
+            }
+            time += durations[last];
+        }
+        logger.log(Level.FINE, "{0} samples {1} to {2}", new Object[]{clip.file.getName(), first, last});
+        return new CroppedTrack(track, first, Math.max(first, last));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A set of time ranges, kept sorted and without overlaps.  Overlapping or touching ranges are
+ * merged as they are added.  The offset of each range is the total duration of it and all of
+ * the ranges before it, which is how far later times move when the ranges are cut out.
+ */
+class RangeSet implements Iterable<Range> {
+    private final ArrayList<Range> ranges = new ArrayList<>();
+
+    /**
+     * Adds a range, merging it with any ranges it overlaps.
+     */
+    void add(Range range) {
+        long start = range.start;
+        long end = range.end;
+        // the first range that ends at or after the start
+        int low = 0;
+        int high = ranges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ranges.get(mid).end < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        int last = first;
+        while (last < ranges.size() && ranges.get(last).start <= end) {
+            start = Math.min(start, ranges.get(last).start);
+            end = Math.max(end, ranges.get(last).end);
+            last++;
+        }
+        ranges.subList(first, last).clear();
+        ranges.add(first, new Range(start, end));
+        updateOffsets(first);
+    }
+
+    private void updateOffsets(int from) {
+        long offset = from == 0 ? 0 : ranges.get(from - 1).offset;
+        for (int i = from; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            offset += range.getDuration();
+            range.offset = offset;
+        }
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    int size() {
+        return ranges.size();
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    Range get(int i) {
+        return ranges.get(i);
+    }
+
+    List<Range> asList() {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    @Override
+    public Iterator<Range> iterator() {
+        return asList().iterator();
+    }
+
+    /**
+     * Returns the total duration of the ranges.
+     */
+    long getDuration() {
+        return ranges.isEmpty() ? 0 : ranges.get(ranges.size() - 1).offset;
+    }
+
+    /**
+     * Returns the parts of start to end that aren't in any of the ranges.
+     */
+    RangeSet complement(long start, long end) {
+        RangeSet result = new RangeSet();
+        long from = start;
+        for (Range range : ranges) {
+            if (range.start > from) {
+                long to = Math.min(range.start, end);
+                if (to > from) {
+                    result.ranges.add(new Range(from, to));
+                }
+            }
+            from = Math.max(from, range.end);
+        }
+        if (end > from) {
+            result.ranges.add(new Range(from, end));
+        }
+        result.updateOffsets(0);
+        return result;
+    }
+
+    /**
+     * Moves each time earlier by the duration of the ranges that end at or before it, so the
+     * times read as if the ranges were cut out.  The times must be in order, so this is a
+     * single pass over both.
+     */
+    void removeFrom(long[] times, int size) {
+        int pos = 0;
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            while (pos < ranges.size() && ranges.get(pos).end <= times[i]) {
+                offset = ranges.get(pos).offset;
+                pos++;
+            }
+            times[i] -= offset;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+/**
+ * A Savitzky-Golay smoothing filter.  Each value is replaced by the value at the center of a
+ * least squares polynomial fit over the window around it.  That works out to a fixed
+ * convolution, so the coefficients are calculated once and smoothing is a single pass.
+ * <p>
+ * The samples are assumed to be evenly spaced.  Past the ends the first and last values are
+ * repeated.
+ */
+class SavitzkyGolay {
+    private final double[] coefficients;
+
+    /**
+     * @param window the number of points in the window.  It is rounded up to an odd number.
+     * @param order the degree of the polynomial.  It must be less than the window.
+     */
+    SavitzkyGolay(int window, int order) {
+        int half = window / 2;
+        window = half * 2 + 1;
+        if (order < 0 || order >= window) {
+            throw new IllegalArgumentException("The order must be from 0 to " + (window - 1));
+        }
+        // the normal equations of the fit (a symmetric Hankel matrix of the sums of i^k)
+        int n = order + 1;
+        double[][] matrix = new double[n][n];
+        for (int i = -half; i <= half; i++) {
+            double power = 1;
+            double[] powers = new double[2 * n - 1];
+            for (int k = 0; k < powers.length; k++) {
+                powers[k] = power;
+                power *= i;
+            }
+            for (int r = 0; r < n; r++) {
+                for (int c = 0; c < n; c++) {
+                    matrix[r][c] += powers[r + c];
+                }
+            }
+        }
+        // the smoothed value is the constant term, so only the first row of the inverse is needed
+        double[] row = solve(matrix, 0);
+        coefficients = new double[window];
+        for (int i = -half; i <= half; i++) {
+            double sum = 0;
+            double power = 1;
+            for (int k = 0; k < n; k++) {
+                sum += row[k] * power;
+                power *= i;
+            }
+            coefficients[i + half] = sum;
+        }
+    }
+
+    /**
+     * Returns column unit of the inverse of the matrix, using Gauss-Jordan elimination with
+     * partial pivoting.  The matrix is overwritten.
+     */
+    private static double[] solve(double[][] matrix, int unit) {
+        int n = matrix.length;
+        double[] b = new double[n];
+        b[unit] = 1;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < n; r++) {
+                if (Math.abs(matrix[r][col]) > Math.abs(matrix[pivot][col])) {
+                    pivot = r;
+                }
+            }
+            double[] tempRow = matrix[col];
+            matrix[col] = matrix[pivot];
+            matrix[pivot] = tempRow;
+            double temp = b[col];
+            b[col] = b[pivot];
+            b[pivot] = temp;
+            for (int r = 0; r < n; r++) {
+                if (r != col) {
+                    double factor = matrix[r][col] / matrix[col][col];
+                    for (int c = col; c < n; c++) {
+                        matrix[r][c] -= factor * matrix[col][c];
+                    }
+                    b[r] -= factor * b[col];
+                }
+            }
+        }
+        for (int r = 0; r < n; r++) {
+            b[r] /= matrix[r][r];
+        }
+        return b;
+    }
+
+    /**
+     * Smooths the first size values of data in place.
+     */
+    void smooth(double[] data, int size) {
+        if (size == 0) {
+            return;
+        }
+        int half = coefficients.length / 2;
+        // a copy of the data with the ends repeated, so the window never runs off the end
+        double[] padded = new double[size + 2 * half];
+        System.arraycopy(data, 0, padded, half, size);
+        for (int i = 0; i < half; i++) {
+            padded[i] = data[0];
+            padded[size + half + i] = data[size - 1];
+        }
+        for (int i = 0; i < size; i++) {
+            double sum = 0;
+            for (int j = 0; j < coefficients.length; j++) {
+                sum += coefficients[j] * padded[i + j];
+            }
+            data[i] = sum;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Parses the fixed timestamp layouts used in gps files directly from the characters, without
+ * creating strings or going through java.time for every point.  Consecutive points are nearly
+ * always on the same day, so the start of the last day seen is cached.
+ * <p>
+ * Anything that doesn't match the expected layout is handed to java.time instead.  This is not
+ * thread safe, so use one instance per file.
+ */
+class TimeParser {
+    private static final DateTimeFormatter GPSU_FORMATTER =
+        DateTimeFormatter.ofPattern ("yyMMddHHmmss.SSS").withZone(ZoneOffset.UTC);
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private int cachedYear = -1;
+    private int cachedMonth;
+    private int cachedDay;
+    private long cachedDayMillis;
+
+    /**
+     * Parses an ISO-8601 UTC time such as 2019-06-12T12:30:00Z or 2019-06-12T12:30:00.123Z.
+     * Leading and trailing whitespace is ignored.
+     */
+    long parseIso(char[] chars, int start, int length) {
+        int end = start + length;
+        while (start < end && Character.isWhitespace(chars[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(chars[end - 1])) {
+            end--;
+        }
+        long millis = parseIso0(chars, start, end);
+        if (millis == Long.MIN_VALUE) {
+            return Instant.parse(new String(chars, start, end - start)).toEpochMilli();
+        }
+        return millis;
+    }
+
+    long parseIso(String text) {
+        return parseIso(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * Returns Long.MIN_VALUE if the text isn't in the expected layout.
+     */
+    private long parseIso0(char[] c, int start, int end) {
+        if (end - start < 20 || c[start + 4] != '-' || c[start + 7] != '-' || c[start + 10] != 'T'
+                || c[start + 13] != ':' || c[start + 16] != ':' || c[end - 1] != 'Z') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(c, start, 4);
+        int month = digits(c, start + 5, 2);
+        int day = digits(c, start + 8, 2);
+        int hour = digits(c, start + 11, 2);
+        int minute = digits(c, start + 14, 2);
+        int second = digits(c, start + 17, 2);
+        int millis = 0;
+        int pos = start + 19;
+        if (pos < end - 1) {
+            if (c[pos] != '.') {
+                return Long.MIN_VALUE;
+            }
+            pos++;
+            int scale = 100;
+            for (; pos < end - 1; pos++) {
+                int digit = c[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Long.MIN_VALUE;
+                }
+                millis += digit * scale;
+                scale /= 10;
+            }
+        }
+        return toMillis(year, month, day, hour, minute, second, millis);
+    }
+
+    /**
+     * Parses a GPMF GPSU time (yyMMddHHmmss.SSS, UTC) stored in the buffer.
+     */
+    long parseGpsu(ByteBuffer buf, int start, int length) {
+        long millis = Long.MIN_VALUE;
+        if (length >= 16 && buf.get(start + 12) == '.') {
+            int year = digits(buf, start, 2);
+            int month = digits(buf, start + 2, 2);
+            int day = digits(buf, start + 4, 2);
+            int hour = digits(buf, start + 6, 2);
+            int minute = digits(buf, start + 8, 2);
+            int second = digits(buf, start + 10, 2);
+            int fraction = digits(buf, start + 13, 3);
+            if (year >= 0) {
+                year += 2000;
+            }
+            millis = toMillis(year, month, day, hour, minute, second, fraction);
+        }
+        if (millis == Long.MIN_VALUE) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(start + i);
+            }
+            String time = new String(bytes, US_ASCII).trim();
+            return ZonedDateTime.parse(time, GPSU_FORMATTER).toInstant().toEpochMilli();
+        }
+        return millis;
+    }
+
+    private long toMillis(int year, int month, int day, int hour, int minute, int second, int millis) {
+        if ((year | month | day | hour | minute | second | millis) < 0
+                || hour > 23 || minute > 59 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        if (year != cachedYear || month != cachedMonth || day != cachedDay) {
+            if (month < 1 || month > 12 || day < 1 || day > 31) {
+                return Long.MIN_VALUE;
+            }
+            try {
+                cachedDayMillis = LocalDate.of(year, month, day).toEpochDay() * MILLIS_PER_DAY;
+            } catch (RuntimeException e) {
+                return Long.MIN_VALUE;
+            }
+            cachedYear = year;
+            cachedMonth = month;
+            cachedDay = day;
+        }
+        return cachedDayMillis + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+    }
+
+    /**
+     * Returns the value of the given number of decimal digits, or -1 if one isn't a digit.
+     */
+    private static int digits(char[] c, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = c[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int digits(ByteBuffer buf, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
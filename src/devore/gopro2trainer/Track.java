@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2019 Steve Devore <mncyclist66@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package devore.gopro2trainer;
+
+import java.time.Instant;
+import java.util.Arrays;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A gps track stored as parallel primitive arrays, one per channel.  Point i is made up of
+ * the i-th entry of each array.  The arrays may be longer than the track, so always use
+ * {@link #size()} as the bound.
+ */
+public class Track {
+    public static final double METERS_TO_MILES = 1.0 / 1609.344;
+    /** meters per second to miles per hour */
+    public static final double MS_TO_MPH = 2.237;
+    /** nautical miles in a degree, converted to statute miles */
+    private static final double MILES_PER_DEGREE = 60 * 1.1515;
+    /** points closer than this in degrees use the flat approximation */
+    private static final double SHORT_DEGREES = .01;
+
+    long[] timestamp;
+    double[] lat;
+    double[] lon;
+    double[] elevation;
+    /** the measured speed in mph, or NaN if it isn't known */
+    double[] speed;
+    double[] power;
+    private int size;
+    /** miles along the track from the first point, valid up to milesCount */
+    private double[] miles = new double[0];
+    private int milesCount;
+
+    public Track() {
+        this(256);
+    }
+
+    public Track(int capacity) {
+        capacity = Math.max(capacity, 1);
+        timestamp = new long[capacity];
+        lat = new double[capacity];
+        lon = new double[capacity];
+        elevation = new double[capacity];
+        speed = new double[capacity];
+        power = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long startTime() {
+        return timestamp[0];
+    }
+
+    public long endTime() {
+        return timestamp[size - 1];
+    }
+
+    /**
+     * Appends a point without speed or power data.
+     */
+    public void add(long timestamp, double lat, double lon, double elevation) {
+        add(timestamp, lat, lon, elevation, Double.NaN, 0);
+    }
+
+    public void add(long timestamp, double lat, double lon, double elevation, double speed, double power) {
+        if (size == this.timestamp.length) {
+            grow(size * 2);
+        }
+        this.timestamp[size] = timestamp;
+        this.lat[size] = lat;
+        this.lon[size] = lon;
+        this.elevation[size] = elevation;
+        this.speed[size] = speed;
+        this.power[size] = power;
+        size++;
+    }
+
+    /**
+     * Appends point i of the other track.
+     */
+    public void add(Track other, int i) {
+        add(other.timestamp[i], other.lat[i], other.lon[i], other.elevation[i], other.speed[i], other.power[i]);
+    }
+
+    /**
+     * Appends all of the points of the other track.
+     */
+    public void addAll(Track other) {
+        if (size + other.size > timestamp.length) {
+            grow(Math.max(size + other.size, size * 2));
+        }
+        System.arraycopy(other.timestamp, 0, timestamp, size, other.size);
+        System.arraycopy(other.lat, 0, lat, size, other.size);
+        System.arraycopy(other.lon, 0, lon, size, other.size);
+        System.arraycopy(other.elevation, 0, elevation, size, other.size);
+        System.arraycopy(other.speed, 0, speed, size, other.size);
+        System.arraycopy(other.power, 0, power, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Copies point from over point to.  The point at from is left as it was.
+     */
+    void copy(int from, int to) {
+        timestamp[to] = timestamp[from];
+        lat[to] = lat[from];
+        lon[to] = lon[from];
+        elevation[to] = elevation[from];
+        speed[to] = speed[from];
+        power[to] = power[from];
+        positionsChanged(to);
+    }
+
+    /**
+     * Drops every point from newSize on.
+     */
+    void truncate(int newSize) {
+        size = Math.min(size, newSize);
+        positionsChanged(size);
+    }
+
+    /**
+     * Keeps only the points from start (inclusive) to end (exclusive).
+     */
+    public void keepRange(int start, int end) {
+        int count = Math.max(end - start, 0);
+        if (start > 0 && count > 0) {
+            System.arraycopy(timestamp, start, timestamp, 0, count);
+            System.arraycopy(lat, start, lat, 0, count);
+            System.arraycopy(lon, start, lon, 0, count);
+            System.arraycopy(elevation, start, elevation, 0, count);
+            System.arraycopy(speed, start, speed, 0, count);
+            System.arraycopy(power, start, power, 0, count);
+        }
+        size = count;
+        positionsChanged(start > 0 ? 0 : count);
+    }
+
+    /**
+     * Keeps only the points where keep is true, preserving their order.
+     */
+    public void compact(boolean[] keep) {
+        int newSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                if (newSize != i) {
+                    copy(i, newSize);
+                }
+                newSize++;
+            }
+        }
+        size = newSize;
+        positionsChanged(size);
+    }
+
+    /**
+     * Call after changing the position of any points, starting with point from.
+     */
+    public void positionsChanged(int from) {
+        milesCount = Math.min(milesCount, from);
+    }
+
+    /**
+     * Brings the cumulative distances up to date.  Only the points added or changed since the
+     * last call are calculated.
+     */
+    private double[] getCumulativeMiles() {
+        if (milesCount < size) {
+            if (miles.length < size) {
+                miles = Arrays.copyOf(miles, timestamp.length);
+            }
+            if (milesCount == 0 && size > 0) {
+                miles[0] = 0;
+                milesCount = 1;
+            }
+            getSegmentMiles(lat, lon, milesCount, size, miles);
+            for (int i = milesCount; i < size; i++) {
+                miles[i] += miles[i - 1];
+            }
+            milesCount = size;
+        }
+        return miles;
+    }
+
+    /**
+     * Returns the miles along the track from point from to point to.
+     */
+    public double getDistance(int from, int to) {
+        double[] m = getCumulativeMiles();
+        return m[to] - m[from];
+    }
+
+    public double getTotalMiles() {
+        return size == 0 ? 0 : getDistance(0, size - 1);
+    }
+
+    /**
+     * Returns the average grade along the track from point from to point to.
+     */
+    public double getGrade(int from, int to) {
+        double distance = getDistance(from, to);
+        if (distance == 0) {
+            return 0;
+        }
+        return ((elevation[to] - elevation[from]) * METERS_TO_MILES) / distance;
+    }
+
+    /**
+     * Shifts a channel (such as elevation, speed or power) later in time.  Each point gets the
+     * value the channel had shift milliseconds earlier, interpolated between the points around
+     * that time.  Before the first point or after the last, the end value is used.  The
+     * timestamps are in order, so this is a single merge pass.
+     */
+    public void shift(double[] channel, long shift) {
+        if (size == 0) {
+            return;
+        }
+        double[] source = Arrays.copyOf(channel, size);
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            long time = timestamp[i] - shift;
+            while (j < size - 1 && timestamp[j + 1] <= time) {
+                j++;
+            }
+            if (time <= timestamp[0]) {
+                channel[i] = source[0];
+            } else if (j == size - 1 || timestamp[j] == time) {
+                channel[i] = source[j];
+            } else {
+                channel[i] = Utils.interpolate(timestamp[j], source[j], timestamp[j + 1], source[j + 1], time);
+            }
+        }
+    }
+
+    /**
+     * Returns a channel sampled every step milliseconds, starting at start, interpolating
+     * between points.  Before the first point or after the last, the end value is used.
+     */
+    public double[] resample(double[] channel, long start, long step, int count) {
+        double[] samples = new double[count];
+        int j = 0;
+        for (int k = 0; k < count; k++) {
+            long time = start + k * step;
+            while (j < size - 1 && timestamp[j + 1] <= time) {
+                j++;
+            }
+            if (time <= timestamp[0]) {
+                samples[k] = channel[0];
+            } else if (j == size - 1 || timestamp[j] == time) {
+                samples[k] = channel[j];
+            } else {
+                samples[k] = Utils.interpolate(timestamp[j], channel[j], timestamp[j + 1], channel[j + 1], time);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the speed at point i coming from the point before it, using the speed data if it
+     * is available.
+     */
+    public double getSpeed(int i) {
+        if (Double.isNaN(speed[i])) {
+            return getDistance(i - 1, i) / ( (timestamp[i] - timestamp[i - 1]) / 1000.0 / 60 / 60);
+        } else {
+            return speed[i];
+        }
+    }
+
+    private void grow(int capacity) {
+        timestamp = Arrays.copyOf(timestamp, capacity);
+        lat = Arrays.copyOf(lat, capacity);
+        lon = Arrays.copyOf(lon, capacity);
+        elevation = Arrays.copyOf(elevation, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        power = Arrays.copyOf(power, capacity);
+    }
+
+    /**
+     * Releases any unused capacity.
+     */
+    public void trimToSize() {
+        if (size < timestamp.length) {
+            grow(Math.max(size, 1));
+        }
+    }
+
+    /**
+     * Returns the index of the point before end with the given time.  If there isn't one it
+     * returns the insertion point plus two.
+     */
+    public int findIndex(long time, int end) {
+        int pos = Arrays.binarySearch(timestamp, 0, end, time);
+        if (pos < 0) {
+            pos = -pos + 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the speed at point i.  It will either use the point last as a reference, or the speed data
+     * if it is available.
+     */
+    public double getMPH(int i, int last) {
+        if (Double.isNaN(speed[i])) {
+            double miles = getMiles(i, last);
+            return miles / ( (timestamp[i] - timestamp[last]) / 1000.0 / 60 / 60);
+        } else {
+            return speed[i];
+        }
+    }
+
+    /**
+     * Returns the miles between points i and j.
+     */
+    public double getMiles(int i, int j) {
+        return getMiles(lat[j], lon[j], lat[i], lon[i]);
+    }
+
+    /**
+     * Returns the miles between two coordinates.
+     */
+    public static double getMiles(double lat1, double lon1, double lat2, double lon2) {
+        double cos1 = Math.cos(Math.toRadians(lat1));
+        double cos2 = Math.cos(Math.toRadians(lat2));
+        return getMiles(lat1, lon1, cos1, lat2, lon2, cos2);
+    }
+
+    /**
+     * Returns the miles between two coordinates, given the cosines of their latitudes.
+     * <p>
+     * Points less than SHORT_DEGREES apart use an equirectangular approximation with the average
+     * of the two cosines.  Compared to the haversine formula the relative error is under 1E-7 at
+     * latitudes up to 80 degrees, far below the gps noise, and it doesn't lose precision for
+     * points a few meters apart like the law of cosines does.  Farther points use the haversine
+     * formula.
+     */
+    static double getMiles(double lat1, double lon1, double cos1, double lat2, double lon2, double cos2) {
+        double dLat = lat2 - lat1;
+        double dLon = lon2 - lon1;
+        if (Math.abs(dLat) < SHORT_DEGREES && Math.abs(dLon) < SHORT_DEGREES) {
+            double x = dLon * (cos1 + cos2) * .5;
+            return Math.sqrt(x * x + dLat * dLat) * MILES_PER_DEGREE;
+        }
+        double sinLat = Math.sin(Math.toRadians(dLat) / 2);
+        double sinLon = Math.sin(Math.toRadians(dLon) / 2);
+        double h = sinLat * sinLat + cos1 * cos2 * sinLon * sinLon;
+        return Math.toDegrees(2 * Math.asin(Math.min(1, Math.sqrt(h)))) * MILES_PER_DEGREE;
+    }
+
+    /**
+     * Fills in the miles between each point and the one before it, for the points from start
+     * (which must be at least 1) to end.  The cosine of each latitude is only calculated once.
+     */
+    static void getSegmentMiles(double[] lat, double[] lon, int start, int end, double[] out) {
+        double lastCos = Math.cos(Math.toRadians(lat[start - 1]));
+        for (int i = start; i < end; i++) {
+            double cos = Math.cos(Math.toRadians(lat[i]));
+            out[i] = getMiles(lat[i - 1], lon[i - 1], lastCos, lat[i], lon[i], cos);
+            lastCos = cos;
+        }
+    }
+
+    public Element toElement(Document doc, int i) {
+        Element trkpt = doc.createElement("trkpt");
+        trkpt.setAttribute("lat",String.format("%.7f", lat[i]));
+        trkpt.setAttribute("lon",String.format("%.7f", lon[i]));
+        Element ele = doc.createElement("ele");
+        ele.setTextContent(String.format("%.2f", elevation[i]));
+        Element time = doc.createElement("time");
+        time.setTextContent(Instant.ofEpochMilli(timestamp[i]).toString());
+        trkpt.appendChild(ele);
+        trkpt.appendChild(time);
+        return trkpt;
+    }
+
+    /**
+     * Describes point i.
+     */
+    public String toString(int i) {
+        return Utils.formatDateTime(timestamp[i])+": "+lat[i]+" "+lon[i]+" "+elevation[i];
+    }
+}
@@ -17,18 +17,60 @@
 package devore.gopro2trainer;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class VideoFile implements Comparable<VideoFile> {
     File file;
     long timeStamp;
     long length;
+    /** the keyframe times in milliseconds from the start of the file.  It may be empty. */
+    long[] keyframes;
 
     public VideoFile(File file, long timeStamp, long length) {
+        this(file, timeStamp, length, new long[0]);
+    }
+
+    public VideoFile(File file, long timeStamp, long length, long[] keyframes) {
         this.file = file;
         this.timeStamp = timeStamp;
         this.length = length;
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * Returns the time of the keyframe closest to the given time, both in seconds from the
+     * start of the file.  If the keyframes aren't known, it assumes there is one every 1.001
+     * seconds, which is what GoPro cameras do.
+     */
+    public double getClosestKeyframe(double seconds) {
+        if (keyframes.length == 0) {
+            return Math.rint(seconds / 1.001) * 1.001;
+        }
+        long millis = Math.round(seconds * 1000);
+        int pos = Arrays.binarySearch(keyframes, millis);
+        if (pos >= 0) {
+            return keyframes[pos] / 1000.0;
+        }
+        pos = -pos - 1;
+        if (pos == keyframes.length || pos > 0 && millis - keyframes[pos - 1] <= keyframes[pos] - millis) {
+            pos--;
+        }
+        return keyframes[pos] / 1000.0;
+    }
+
+    /**
+     * Returns the time of the first keyframe after the given time, both in seconds from the
+     * start of the file, or infinity if there isn't one.
+     */
+    public double getNextKeyframe(double seconds) {
+        if (keyframes.length == 0) {
+            double next = Math.ceil(seconds / 1.001) * 1.001;
+            return next - seconds < 0.0005 ? next + 1.001 : next;
+        }
+        long millis = Math.round(seconds * 1000);
+        int pos = Arrays.binarySearch(keyframes, millis);
+        pos = pos >= 0 ? pos + 1 : -pos - 1;
+        return pos == keyframes.length ? Double.POSITIVE_INFINITY : keyframes[pos] / 1000.0;
     }
 
     public long getEnding() {
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,13 +39,18 @@ public class VideoHelper {
     public int maxSizeMB;
     public int normalBitrate;
     public static boolean reencode;
+    public static boolean remux;
+    /** if set, ffmpeg is run by this instead of writing a script */
+    private final FfmpegRunner runner;
     private static final String FPS="19.98";  //29.97
+    /** the most clips that are opened as separate inputs when reencoding */
+    private static final int MAX_INPUTS = 16;
     public static final String CUT = "ffmpeg -y -ss %f -i %s -t %f -avoid_negative_ts 1 -c copy -map 0:v:0 cut%03d.mp4\n";
     public static final String STREAM_COPY = "ffmpeg -y -safe 0 -f concat -i mylist.txt -c copy -map v -metadata creation_time=\"%s\" \"%s\"\n";
     private static final String ENCODE_ARGS = "%s -c:v libx264 -b:v %dk %s ";
-    public static final String TWO_PASS = 
-        "ffmpeg -y "+ENCODE_ARGS+" -pass 1 -f mp4 /dev/null && " +
-        "ffmpeg -y "+ENCODE_ARGS+"-metadata creation_time=\"%s\" -pass 2 \"%s\"\n";
+    private static final String PASS_1 = "ffmpeg -y "+ENCODE_ARGS+" -pass 1 -f mp4 /dev/null";
+    private static final String PASS_2 = "ffmpeg -y "+ENCODE_ARGS+"-metadata creation_time=\"%s\" -pass 2 \"%s\"\n";
+    public static final String TWO_PASS = PASS_1 + " && " + PASS_2;
     
     public static final String SINGLE_PASS = "ffmpeg -y %s %s -metadata creation_time=\"%s\" \"%s\"\n";
     
@@ -67,14 +73,29 @@ public class VideoHelper {
     private final List<String> sourceFiles = new ArrayList<>();
     private final String filter;
     private final String encodeOptions;
+    /** if more than 0, the video is reencoded in pieces of about this many seconds */
+    private final double chunkSeconds;
     
     public VideoHelper(File dir, CommandLine cmd) {
         this.dir = dir;
         maxSizeMB = Integer.parseInt(cmd.getOptionValue("maxSizeMB", "0"));
         normalBitrate = Integer.parseInt(cmd.getOptionValue("bitrate", "0"));
         reencode = cmd.hasOption("reencode");
+        remux = cmd.hasOption("remux") && !reencode;
         filter = cmd.getOptionValue("filter");
         encodeOptions = cmd.getOptionValue("encode", "");
+        chunkSeconds = Double.parseDouble(cmd.getOptionValue("chunkSeconds", "0"));
+        if (cmd.hasOption("run")) {
+            // copying the stream is limited by the disk, so don't run more than a few of those at once
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (!reencode) {
+                threads = Math.min(threads, 4);
+            }
+            threads = Integer.parseInt(cmd.getOptionValue("jobs", Integer.toString(threads)));
+            runner = new FfmpegRunner(cmd.getOptionValue("ffmpeg", "ffmpeg"), threads);
+        } else {
+            runner = null;
+        }
     }
     
     public void setOutputFile(String outputFile) {
@@ -90,13 +111,20 @@ public class VideoHelper {
         return vf.timeStamp + vf.length;
     }
     
+    /**
+     * Returns the GoPro videos in the directory.
+     */
+    public Collection<File> findVideoFiles() {
+        return FileUtils.listFiles(dir, new WildcardFileFilter("GH*.mp4", IOCase.INSENSITIVE), null);
+    }
+
     public void load(long offset, GPXHelper gpx) throws IOException {
-        Collection<File> files = FileUtils.listFiles(dir, new WildcardFileFilter("GH*.mp4", IOCase.INSENSITIVE), null);
+        Collection<File> files = findVideoFiles();
         logger.info("Load video files: ");
         for (File file : files) {
             sourceFiles.add(file.getName());
-            GoProMP4 mp4 = new GoProMP4(file);
-            VideoFile vf = new VideoFile(file, mp4.getTimestamp() + offset, mp4.getDuration());
+            GoProMP4 mp4 = GoProMP4.get(file);
+            VideoFile vf = new VideoFile(file, mp4.getTimestamp() + offset, mp4.getDuration(), mp4.getKeyframes());
             videoFiles.add(vf);
         }
         videoFiles.sort(null);
@@ -124,11 +152,11 @@ public class VideoHelper {
      * remove any gps data for that period.
      * @param cuts 
      */
-    void checkForMissingVideo(List<Range> cuts) {
+    void checkForMissingVideo(RangeSet cuts) {
         // Not implemented.
     }
 
-    void trim(long startTime, long endTime, List<Range> cuts) throws IOException {
+    void trim(long startTime, long endTime, RangeSet cuts) throws IOException {
         logger.info("starting trim");
         // If it is within a second, don't clip
         this.startClip =Math.max(startTime, startTime());
@@ -137,19 +165,7 @@ public class VideoHelper {
 
         // Take the list of clipped sections and calculate the 
         // the sections to save
-        ArrayList<Range> includeRange = new ArrayList<>();
-        long startInclude = startClip;
-        for (Range r : cuts) {
-            Range newR = new Range(startInclude, Math.min(r.start, endClip));
-            if (newR.getDuration() > 0) {
-                includeRange.add(newR);
-                startInclude = r.end;
-            }
-        }
-        Range newR = new Range(startInclude, endClip);
-        if (newR.getDuration() > 0) {
-            includeRange.add(newR);
-        }
+        List<Range> includeRange = cuts.complement(startClip, endClip).asList();
         
         long dur = 0;
         logger.info("cuts");
@@ -170,13 +186,32 @@ public class VideoHelper {
         logger.info("Video files:");
         videoFiles.forEach((vf) -> logger.info(vf.toString()));
 
+        if (remux) {
+            Mp4Remuxer.remux(getClips(includeRange, true), new File(outputFile), startClip);
+            return;
+        }
+        List<Clip> clips = getClips(includeRange, !reencode);
+        if (clips.isEmpty()) {
+            logger.log(Level.WARNING, "None of the video is in the ranges to keep, so there is nothing to write");
+            return;
+        }
+
         StringBuilder ffmpegScript = new StringBuilder();
         StringBuilder cutFile = new StringBuilder();
         ArrayList<String> tempFiles = new ArrayList<>();
+        // the jobs for the runner.  The jobs in each stage are run at the same time.
+        List<List<FfmpegRunner.Job>> stages = new ArrayList<>();
+        // files that the script moves or deletes itself, but have to be deleted after running the jobs
+        List<String> jobTempFiles = new ArrayList<>();
         String timestamp = Utils.isoDate(startClip);
         if (!reencode) {
-            ffmpegScript.append(getStreamCuts(includeRange, cutFile, tempFiles));
-            ffmpegScript.append(String.format(STREAM_COPY, timestamp, outputFile));
+            List<FfmpegRunner.Job> cutJobs = new ArrayList<>();
+            ffmpegScript.append(getStreamCuts(clips, cutFile, tempFiles, cutJobs));
+            String concat = String.format(STREAM_COPY, timestamp, outputFile);
+            ffmpegScript.append(concat);
+            stages.add(cutJobs);
+            cutJobs.forEach((job) -> jobTempFiles.add(job.getOutput().getPath()));
+            stages.add(Collections.singletonList(new FfmpegRunner.Job("concat", concat, includeDur / 1000.0)));
         } else {
 
             long seconds = (endClip - startClip) / 1000;
@@ -184,14 +219,42 @@ public class VideoHelper {
             if (maxSizeMB > 0 && (seconds * bitrate / 8192) > maxSizeMB) {
                 bitrate = maxSizeMB * 8192 / seconds;
             }
-            String input = calcFilter(videoFiles, includeRange);
-            if (bitrate > 0) {
+            if (clips.size() > MAX_INPUTS) {
+                // these are read from a list, which can only start on keyframes
+                clips = getClips(includeRange, true);
+            }
+            if (chunkSeconds > 0) {
+                ffmpegScript.append(getEncodedChunks(getChunks(clips), bitrate, timestamp, cutFile, tempFiles, stages));
+                String concat = String.format(STREAM_COPY, timestamp, outputFile);
+                ffmpegScript.append(concat);
+                tempFiles.add("mylist.txt");
+                stages.add(Collections.singletonList(new FfmpegRunner.Job("concat", concat, includeDur / 1000.0)));
+            } else if (bitrate > 0) {
+                String input = calcFilter(clips, "clips.txt", tempFiles);
                 ffmpegScript.append(String.format(TWO_PASS, input, bitrate, encodeOptions, input, bitrate, encodeOptions, timestamp, outputFile));
                 tempFiles.add("ffmpeg2pass-0.log");
                 tempFiles.add("ffmpeg2pass-0.log.mbtree");
+                stages.add(Collections.singletonList(new FfmpegRunner.Job("pass1",
+                        String.format(PASS_1, input, bitrate, encodeOptions), includeDur / 1000.0)));
+                stages.add(Collections.singletonList(new FfmpegRunner.Job("pass2",
+                        String.format(PASS_2, input, bitrate, encodeOptions, timestamp, outputFile), includeDur / 1000.0)));
             } else {
-                ffmpegScript.append(String.format(SINGLE_PASS, input, encodeOptions, timestamp, outputFile));
+                String input = calcFilter(clips, "clips.txt", tempFiles);
+                String encode = String.format(SINGLE_PASS, input, encodeOptions, timestamp, outputFile);
+                ffmpegScript.append(encode);
+                stages.add(Collections.singletonList(new FfmpegRunner.Job("encode", encode, includeDur / 1000.0)));
+            }
+        }
+        if (runner != null) {
+            FileUtils.writeStringToFile(new File("mylist.txt"), toUnix(cutFile.toString()), StandardCharsets.UTF_8.name());
+            for (List<FfmpegRunner.Job> stage : stages) {
+                runner.run(stage);
             }
+            tempFiles.addAll(jobTempFiles);
+            tempFiles.add("mylist.txt");
+            tempFiles.forEach((tempFile) -> new File(tempFile).delete());
+            logger.log(Level.INFO, "Wrote {0}", outputFile);
+            return;
         }
         tempFiles.forEach((tempFile) -> ffmpegScript.append(String.format("$DEL$ \"%s\"\n", tempFile)));
         
@@ -200,13 +263,16 @@ public class VideoHelper {
         FileUtils.writeStringToFile(new File("mylist.txt"), toUnix(cutFile.toString()), StandardCharsets.UTF_8.name());
     }
 
-    private String getStreamCuts(List<Range> includeRange, StringBuilder cutFile, List<String> tempFiles) {
-        StringBuilder ffmpegScript = new StringBuilder();
-        int cutNumber = 0;
-        double totalLength = 0;
+    /**
+     * Returns the pieces of the video files that make up the include ranges.
+     *
+     * @param onKeyframes if the pieces must start on keyframes, such as when the stream is copied
+     */
+    List<Clip> getClips(List<Range> includeRange, boolean onKeyframes) {
+        List<Clip> clips = new ArrayList<>();
         double offset =0;
         for (Range r : includeRange) {
-            logger.log(Level.INFO, "include: {0}", r);
+            logger.log(Level.FINE, "include: {0}", r);
             long currentPos = r.start;
             
             // One thing that isn't perfect is that if the length is between frames, it always goes a bit longer
@@ -219,10 +285,9 @@ public class VideoHelper {
                     double start = (currentPos - vf.timeStamp) / 1000.0;
                     double end = (endPos - vf.timeStamp) / 1000.0;
                     double length = end - start;
-                    cutNumber++;
                     if (start == 0 && (endPos - vf.timeStamp) == vf.length) {
                         // We can include the entire file.
-                        cutFile.append(String.format("file '%s'\n", vf.file.getPath()));
+                        clips.add(new Clip(vf, 0, length, true));
                     } else {
                         double adjStart = start + offset;
                         length -= offset;
@@ -232,11 +297,10 @@ public class VideoHelper {
                         } else {
                             offset = 0;
                         }
-                        // cut on keyframes.  This works for my GoPro.  Your mileage may vary.
-                        if (!reencode) {
+                        // cut on keyframes, so the stream can be copied
+                        if (onKeyframes) {
                             double lenSeconds = vf.length / 1000.0;
-                            // this will cut on keyframes, at least for my gopro
-                            adjStart = Math.rint(adjStart / 1.001) * 1.001;
+                            adjStart = vf.getClosestKeyframe(adjStart);
                             // if the adjustment causes the duration to be longer than the existing file,
                             // account for the new length
                             if ((adjStart + length) > lenSeconds) {
@@ -246,19 +310,35 @@ public class VideoHelper {
                                 logger.log(Level.FINEST, "new: {0}", length);
                             }
                         }
-                        // copy the segment needed, video only
-                        ffmpegScript.append(String.format(CUT, adjStart, vf.file.getPath(), length, cutNumber));
-                        cutFile.append(String.format("file 'cut%03d.mp4'\n",cutNumber));
-                        tempFiles.add(String.format("cut%03d.mp4", cutNumber));
+                        clips.add(new Clip(vf, adjStart, length, false));
                     }
-                    totalLength +=length;
                     currentPos = endPos;
                 }
             }
         }
-        if (cutNumber == 0) {
-            logger.log(Level.WARNING, "There are no video cuts needed. You can use your existing mp4 as-is");
-            return "";
+        double totalLength = 0;
+        for (Clip clip : clips) {
+            totalLength += clip.length;
+        }
+        logger.log(Level.INFO, "total: {0}", Utils.formatElapsed((long) (totalLength*1000)));
+        return clips;
+    }
+
+    private String getStreamCuts(List<Clip> clips, StringBuilder cutFile, List<String> tempFiles, List<FfmpegRunner.Job> cutJobs) {
+        StringBuilder ffmpegScript = new StringBuilder();
+        int cutNumber = 0;
+        for (Clip clip : clips) {
+            cutNumber++;
+            if (clip.whole) {
+                cutFile.append(String.format("file '%s'\n", clip.file.file.getPath()));
+            } else {
+                // copy the segment needed, video only
+                String cut = String.format(CUT, clip.start, clip.file.file.getPath(), clip.length, cutNumber);
+                ffmpegScript.append(cut);
+                cutJobs.add(new FfmpegRunner.Job(String.format("cut%03d", cutNumber), cut, clip.length));
+                cutFile.append(String.format("file 'cut%03d.mp4'\n",cutNumber));
+                tempFiles.add(String.format("cut%03d.mp4", cutNumber));
+            }
         }
         if (cutNumber == 1 && !reencode) {
             // only 1 file, so merge isn't needed, just rename it.
@@ -267,47 +347,137 @@ public class VideoHelper {
         } else {
             tempFiles.add("mylist.txt");
         }
-
-        logger.log(Level.INFO, "total: {0}", Utils.formatElapsed((long) (totalLength*1000)));
         return ffmpegScript.toString();
     }
     
     /**
-     * This creates a custom filter that concatenates all input files, then creates nonstop segments, 
-     * then combining them back to one file without stops.
-     * 
-     * @param videoFiles
-     * @param includes
-     * @return 
+     * Splits the clips into chunks of about chunkSeconds, so they can be encoded at the same
+     * time.  Clips are split on keyframes.
      */
-    private String calcFilter(List<VideoFile> videoFiles, List<Range> includes) {
-        StringBuilder str = new StringBuilder();
-        for (VideoFile vf : videoFiles) {
-            str.append("-i "+vf.getName()+" ");
+    private List<List<Clip>> getChunks(List<Clip> clips) {
+        List<List<Clip>> chunks = new ArrayList<>();
+        List<Clip> chunk = new ArrayList<>();
+        double chunkLength = 0;
+        for (Clip clip : clips) {
+            if (chunkLength >= chunkSeconds) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkLength = 0;
+            }
+            double start = clip.start;
+            double length = clip.length;
+            while (chunkLength + length > chunkSeconds) {
+                double split = clip.file.getClosestKeyframe(start + chunkSeconds - chunkLength);
+                if (split <= start) {
+                    if (!chunk.isEmpty()) {
+                        // there isn't room for a keyframe in this chunk, so start a new one
+                        chunks.add(chunk);
+                        chunk = new ArrayList<>();
+                        chunkLength = 0;
+                        continue;
+                    }
+                    split = clip.file.getNextKeyframe(start);
+                }
+                if (split <= start || split >= start + length) {
+                    break;
+                }
+                chunk.add(new Clip(clip.file, start, split - start, false));
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkLength = 0;
+                length -= split - start;
+                start = split;
+            }
+            chunk.add(new Clip(clip.file, start, length, false));
+            chunkLength += length;
         }
-        str.append("-filter_complex \"");
-        int ct=0;
-        for (VideoFile vf : videoFiles) {
-            str.append("["+ct+":v:0]");
-            ct++;
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
         }
-        str.append("concat=n="+(videoFiles.size())+":v=1[outv]; [outv]");
-        str.append(" split="+includes.size()+" ");
-        for (int i=0; i < includes.size(); i++) {
-            str.append("[out"+i+"]");
+        logger.log(Level.INFO, "Encoding in {0} chunks", chunks.size());
+        return chunks;
+    }
+
+    /**
+     * Returns the script to encode each chunk to its own file, and adds the jobs to do it.  The
+     * chunks all use the same settings and bitrate, so the bits are divided between them by
+     * their length and the files can be joined without reencoding.  With two passes, each
+     * chunk has its own pass log.
+     */
+    private String getEncodedChunks(List<List<Clip>> chunks, long bitrate, String timestamp, StringBuilder cutFile,
+            List<String> tempFiles, List<List<FfmpegRunner.Job>> stages) throws IOException {
+        StringBuilder ffmpegScript = new StringBuilder();
+        List<FfmpegRunner.Job> firstPass = new ArrayList<>();
+        List<FfmpegRunner.Job> lastPass = new ArrayList<>();
+        int chunkNumber = 0;
+        for (List<Clip> chunk : chunks) {
+            chunkNumber++;
+            String name = String.format("chunk%03d", chunkNumber);
+            String output = name + ".mp4";
+            String input = calcFilter(chunk, name + ".txt", tempFiles);
+            double length = 0;
+            for (Clip clip : chunk) {
+                length += clip.length;
+            }
+            if (bitrate > 0) {
+                String options = encodeOptions + " -passlogfile " + name;
+                String pass1 = String.format(PASS_1, input, bitrate, options);
+                String pass2 = String.format(PASS_2, input, bitrate, options, timestamp, output);
+                ffmpegScript.append(pass1).append(" && ").append(pass2);
+                firstPass.add(new FfmpegRunner.Job(name + "-pass1", pass1, length));
+                lastPass.add(new FfmpegRunner.Job(name + "-pass2", pass2, length));
+                tempFiles.add(name + "-0.log");
+                tempFiles.add(name + "-0.log.mbtree");
+            } else {
+                String encode = String.format(SINGLE_PASS, input, encodeOptions, timestamp, output);
+                ffmpegScript.append(encode);
+                lastPass.add(new FfmpegRunner.Job(name, encode, length));
+            }
+            cutFile.append(String.format("file '%s'\n", output));
+            tempFiles.add(output);
         }
-        str.append("; ");
-        ct=0;
-        for (Range r : includes) {
-            String formatStr = 
-                    String.format("start=%f:end=%f", (r.start - startClip) / 1000.0, (r.end - startClip) / 1000.0);
-            str.append("[out"+ct+"]trim="+formatStr+",setpts=PTS-STARTPTS[vo"+ct+"];");
-            ct++;
+        if (!firstPass.isEmpty()) {
+            stages.add(firstPass);
         }
-        for (int i=0; i < ct; i++) {
-            str.append("[vo"+i+"]");
+        stages.add(lastPass);
+        return ffmpegScript.toString();
+    }
+
+    /**
+     * Returns the inputs and filter to encode the clips.  Each clip is its own input, which
+     * ffmpeg seeks to, and they are joined by the concat filter.  With more than MAX_INPUTS
+     * clips that would be too many decoders and too long a command line, so the clips are
+     * written to a list file for the concat demuxer instead.  Then the clips have to start
+     * on keyframes.
+     *
+     * @param listFile the name of the list file, if one is needed.  It is added to tempFiles.
+     */
+    private String calcFilter(List<Clip> clips, String listFile, List<String> tempFiles) throws IOException {
+        StringBuilder str = new StringBuilder();
+        if (clips.size() > MAX_INPUTS) {
+            StringBuilder list = new StringBuilder();
+            for (Clip clip : clips) {
+                list.append(String.format("file '%s'\ninpoint %f\noutpoint %f\n",
+                        clip.file.file.getPath(), clip.start, clip.start + clip.length));
+            }
+            FileUtils.writeStringToFile(new File(listFile), toUnix(list.toString()), StandardCharsets.UTF_8.name());
+            tempFiles.add(listFile);
+            str.append("-safe 0 -f concat -i "+listFile+" ");
+            if (filter != null) {
+                str.append("-filter_complex \"[0:v:0]"+filter+"[o]\" -map [o]");
+            } else {
+                str.append("-map 0:v:0");
+            }
+            return str.toString();
+        }
+        for (Clip clip : clips) {
+            str.append(String.format("-ss %f -t %f -i \"%s\" ", clip.start, clip.length, clip.file.file.getPath()));
         }
-        str.append("concat=n="+ct+":v=1");
+        str.append("-filter_complex \"");
+        for (int i = 0; i < clips.size(); i++) {
+            str.append("["+i+":v:0]");
+        }
+        str.append("concat=n="+clips.size()+":v=1");
         if (filter != null) {
             str.append("[i];[i]"+filter);
         }
@@ -327,4 +497,22 @@ public class VideoHelper {
     public List<? extends String> getSourceFiles() {
         return sourceFiles;
     }
+
+    /**
+     * A piece of a video file, from start for length seconds.
+     */
+    static class Clip {
+        final VideoFile file;
+        final double start;
+        final double length;
+        /** true if this is the entire file */
+        final boolean whole;
+
+        Clip(VideoFile file, double start, double length, boolean whole) {
+            this.file = file;
+            this.start = start;
+            this.length = length;
+            this.whole = whole;
+        }
+    }
 }